@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * measures the validation of large arrays of submitted paths, as a POST to the servlet does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildCleanupInfoBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int nbPaths;
+
+    @Param({"RESOURCERESOLVER_MOCK", "JCR_MOCK"})
+    public ResourceResolverType resolverType;
+
+    private TypeCleanupServiceImpl service;
+
+    private String[] paths;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        service = new TypeCleanupServiceImpl();
+        service.factory = MockSling.newResourceResolverFactory(resolverType);
+        ResourceResolver resolver = service.factory.getAdministrativeResourceResolver(null);
+        ContentGenerator generator = new ContentGenerator(42, 10, 3, 0.1);
+        try {
+            generator.generate(resolver, "/content");
+        } finally {
+            resolver.close();
+        }
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, ContentGenerator.inclusions());
+        service.setupLists(properties);
+        service.setupCache(properties);
+        service.setupCleanup(properties);
+
+        // obsolete, valid, and missing paths, as a stale list would have
+        List<String> obsoletePaths = generator.getObsoletePaths();
+        Random random = new Random(42);
+        paths = new String[nbPaths];
+        for (int i = 0; i < nbPaths; i++) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    paths[i] = obsoletePaths.get(random.nextInt(obsoletePaths.size()));
+                    break;
+                case 1:
+                    paths[i] = "/content/node" + random.nextInt(10) + "/node" + random.nextInt(10);
+                    break;
+                default:
+                    paths[i] = "/content/removed" + i;
+            }
+        }
+    }
+
+    @Benchmark
+    public TypeCleanupInfo buildCleanupInfo() {
+        TypeCleanupInfo infos = service.buildCleanupInfo(paths);
+        infos.dispose();
+        return infos;
+    }
+}
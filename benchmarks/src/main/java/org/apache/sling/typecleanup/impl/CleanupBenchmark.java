@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * measures the removal of obsolete paths with varying commit sizes, on a fresh repository each time
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class CleanupBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int batchSize;
+
+    @Param({"0", "2000"})
+    public long commitTarget;
+
+    @Param({"0.1", "0.5"})
+    public double obsoleteRatio;
+
+    private TypeCleanupServiceImpl service;
+
+    private ResourceResolver resolver;
+
+    private TypeCleanupInfo infos;
+
+    @Setup(Level.Trial)
+    public void setupService() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, ContentGenerator.inclusions());
+        properties.put(TypeCleanupServiceImpl.PROP_CLEANUP_BATCH_SIZE, batchSize);
+        properties.put(TypeCleanupServiceImpl.PROP_CLEANUP_COMMIT_TARGET, commitTarget);
+        service = new TypeCleanupServiceImpl();
+        service.setupLists(properties);
+        service.setupCleanup(properties);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupContent() throws Exception {
+        resolver = MockSling.newResourceResolver(ResourceResolverType.JCR_MOCK);
+        ContentGenerator generator = new ContentGenerator(42, 10, 3, obsoleteRatio);
+        generator.generate(resolver, "/content");
+        infos = new TypeCleanupInfo();
+        for (String path : generator.getObsoletePaths()) {
+            infos.add(path);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        infos.dispose();
+        resolver.close();
+    }
+
+    @Benchmark
+    public long cleanup() throws Exception {
+        service.cleanup(resolver, infos);
+        return infos.getNbRemoved();
+    }
+}
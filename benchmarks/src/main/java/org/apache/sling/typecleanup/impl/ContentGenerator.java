@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates a synthetic content tree of a given width and depth, a given ratio of its resources
+ * having a missing resource type. Content only depends on the seed, so that runs are comparable.
+ */
+public class ContentGenerator {
+
+    public static final String TYPES_ROOT = "/apps/bench";
+
+    public static final int TYPES = 20;
+
+    private final Random random;
+
+    private final int width;
+
+    private final int depth;
+
+    private final double obsoleteRatio;
+
+    private final List<String> obsoletePaths = new ArrayList<String>();
+
+    private int nbResources;
+
+    /**
+     * @param seed seed of the random choice of obsolete resources
+     * @param width number of children of each non leaf resource
+     * @param depth number of levels below the root
+     * @param obsoleteRatio probability for a resource to have a missing type, between 0 and 1
+     */
+    public ContentGenerator(long seed, int width, int depth, double obsoleteRatio) {
+        this.random = new Random(seed);
+        this.width = width;
+        this.depth = depth;
+        this.obsoleteRatio = obsoleteRatio;
+    }
+
+    /**
+     * @return inclusion prefixes matching generated types, existing or not
+     */
+    public static String[] inclusions() {
+        return new String[] {TYPES_ROOT};
+    }
+
+    /**
+     * creates existing types under {@link #TYPES_ROOT}, and the content tree under a new root
+     * @param resolver
+     * @param rootPath path of the content root, whose parent must exist
+     * @return generated root
+     * @throws PersistenceException
+     */
+    public Resource generate(ResourceResolver resolver, String rootPath) throws PersistenceException {
+        Resource apps = getOrCreate(resolver, resolver.getResource("/"), "apps");
+        Resource types = getOrCreate(resolver, apps, "bench");
+        for (int i = 0; i < TYPES; i++) {
+            getOrCreate(resolver, types, "type" + i);
+        }
+        int slash = rootPath.lastIndexOf('/');
+        Resource parent = resolver.getResource(slash > 0 ? rootPath.substring(0, slash) : "/");
+        Resource root = resolver.create(parent, rootPath.substring(slash + 1), properties(null));
+        generate(resolver, root, 1, false);
+        resolver.commit();
+        return root;
+    }
+
+    private void generate(ResourceResolver resolver, Resource parent, int level, boolean obsoleteAncestor) throws PersistenceException {
+        for (int i = 0; i < width; i++) {
+            boolean obsolete = random.nextDouble() < obsoleteRatio;
+            int type = random.nextInt(TYPES);
+            Resource child = resolver.create(parent, "node" + i, properties(TYPES_ROOT + (obsolete ? "/missing" : "/type") + type));
+            nbResources++;
+            if (obsolete && !obsoleteAncestor) {
+                obsoletePaths.add(child.getPath());
+            }
+            if (level < depth) {
+                generate(resolver, child, level + 1, obsoleteAncestor || obsolete);
+            }
+        }
+    }
+
+    private static Resource getOrCreate(ResourceResolver resolver, Resource parent, String name) throws PersistenceException {
+        Resource child = parent.getChild(name);
+        return child != null ? child : resolver.create(parent, name, properties(null));
+    }
+
+    private static Map<String, Object> properties(String resourceType) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("jcr:primaryType", "nt:unstructured");
+        if (resourceType != null) {
+            properties.put("sling:resourceType", resourceType);
+        }
+        return properties;
+    }
+
+    /**
+     * @return topmost obsolete paths of the last generated tree, i.e. what a scan should find
+     */
+    public List<String> getObsoletePaths() {
+        return obsoletePaths;
+    }
+
+    /**
+     * @return number of resources generated below the root
+     */
+    public int getNbResources() {
+        return nbResources;
+    }
+}
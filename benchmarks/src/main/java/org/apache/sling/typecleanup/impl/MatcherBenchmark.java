@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * measures resource type inclusion checks against large inclusion and exclusion lists
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatcherBenchmark {
+
+    private static final int TYPES = 1024;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int prefixes;
+
+    private TypeCleanupServiceImpl service;
+
+    private String[] types;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        String[] inclusions = new String[prefixes];
+        String[] exclusions = new String[prefixes / 10 + 1];
+        for (int i = 0; i < inclusions.length; i++) {
+            inclusions[i] = "/apps/project" + i + "/components";
+        }
+        for (int i = 0; i < exclusions.length; i++) {
+            exclusions[i] = "/apps/project" + random.nextInt(prefixes) + "/components/ignored";
+        }
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, inclusions);
+        properties.put(TypeCleanupServiceImpl.PROP_EXCLUSIONS_PREFIXES, exclusions);
+        service = new TypeCleanupServiceImpl();
+        service.setupLists(properties);
+
+        // mix of included, excluded, and unconfigured types, as found in content
+        types = new String[TYPES];
+        for (int i = 0; i < TYPES; i++) {
+            int project = random.nextInt(prefixes * 2);
+            switch (random.nextInt(3)) {
+                case 0:
+                    types[i] = "/apps/project" + project + "/components/page";
+                    break;
+                case 1:
+                    types[i] = "/apps/project" + project + "/components/ignored/text";
+                    break;
+                default:
+                    types[i] = "project" + project + "/components/image";
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean isTypeIncluded() {
+        next = (next + 1) & (TYPES - 1);
+        return service.isTypeIncluded(types[next]);
+    }
+
+    @Benchmark
+    public void isTypeIncludedAll(Blackhole blackhole) {
+        for (String type : types) {
+            blackhole.consume(service.isTypeIncluded(type));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.apache.sling.typecleanup.TypeCleanupOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.jcr.Node;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * measures a traversal collecting obsolete paths over synthetic trees
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraversalBenchmark {
+
+    @Param({"10"})
+    public int width;
+
+    @Param({"3", "4"})
+    public int depth;
+
+    @Param({"0.01", "0.1"})
+    public double obsoleteRatio;
+
+    @Param({"RESOURCERESOLVER_MOCK", "JCR_MOCK"})
+    public ResourceResolverType resolverType;
+
+    @Param({"0", "10000"})
+    public int cacheSize;
+
+    /**
+     * walks JCR nodes instead of resources, if the resolver is backed by JCR
+     */
+    @Param({"false", "true"})
+    public boolean jcrTraversal;
+
+    private TypeCleanupServiceImpl service;
+
+    private ResourceResolver resolver;
+
+    private Resource root;
+
+    private Node node;
+
+    private int expected;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        resolver = MockSling.newResourceResolver(resolverType);
+        ContentGenerator generator = new ContentGenerator(42, width, depth, obsoleteRatio);
+        root = generator.generate(resolver, "/content");
+        expected = generator.getObsoletePaths().size();
+        node = jcrTraversal ? root.adaptTo(Node.class) : null;
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, ContentGenerator.inclusions());
+        properties.put(TypeCleanupServiceImpl.PROP_CACHE_SIZE, cacheSize);
+        service = new TypeCleanupServiceImpl();
+        service.setupLists(properties);
+        service.setupCache(properties);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        resolver.close();
+    }
+
+    @Benchmark
+    public TypeCleanupInfo collectObsoletePaths() throws Exception {
+        TypeCleanupInfo infos = new TypeCleanupInfo();
+        if (node != null) {
+            service.collectObsoleteNodes(service.newScanContext(infos, resolver), node, new TypeCleanupOptions());
+        } else {
+            service.collectObsoletePaths(infos, resolver, root);
+        }
+        if (infos.getNbObsolete() != expected) {
+            throw new IllegalStateException(infos.getNbObsolete() + " obsolete paths found, " + expected + " expected");
+        }
+        return infos;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Append only list of paths, front coded: each path is stored as the length of the prefix it shares
+ * with the previous one, followed by the rest of it, which for paths listed in tree order is mostly
+ * the last segment. Every {@link #BLOCK_SIZE} paths a block starts with a full path, so that a path
+ * is decoded from its block only. Once blocks take more than a threshold, they are spilled to a
+ * temporary file, deleted by {@link #dispose()}. Paths are decoded lazily, block by block when
+ * iterating.
+ */
+public class PathList extends AbstractList<String> {
+
+    static final int BLOCK_SIZE = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * number of bytes of blocks above which they are spilled to a file, 0 to keep them in memory
+     */
+    private final long spillThreshold;
+
+    /**
+     * complete blocks, while they are kept in memory
+     */
+    private final List<byte[]> blocks = new ArrayList<byte[]>();
+
+    private long memoryBytes;
+
+    private File file;
+
+    private RandomAccessFile spill;
+
+    private long[] blockOffsets = new long[0];
+
+    private int nbBlocks;
+
+    /**
+     * block being filled
+     */
+    private final ByteArrayOutputStream current = new ByteArrayOutputStream();
+
+    private String last;
+
+    private int size;
+
+    /**
+     * list kept in memory
+     */
+    public PathList() {
+        this(0);
+    }
+
+    /**
+     * @param spillThreshold number of encoded bytes above which paths are spilled to a temporary file, 0 to keep them in memory
+     */
+    public PathList(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    @Override
+    public synchronized boolean add(String path) {
+        int shared = 0;
+        if (last != null) {
+            int max = Math.min(last.length(), path.length());
+            while (shared < max && last.charAt(shared) == path.charAt(shared)) {
+                shared++;
+            }
+            if (shared > 0 && shared < path.length() && Character.isHighSurrogate(path.charAt(shared - 1))) {
+                shared--;
+            }
+        }
+        byte[] suffix = path.substring(shared).getBytes(UTF8);
+        writeInt(current, shared);
+        writeInt(current, suffix.length);
+        current.write(suffix, 0, suffix.length);
+        last = path;
+        size++;
+        modCount++;
+        if (size % BLOCK_SIZE == 0) {
+            seal();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        return decode(readBlock(index / BLOCK_SIZE))[index % BLOCK_SIZE];
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int index;
+            private String[] block;
+
+            @Override
+            public boolean hasNext() {
+                return index < size();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (block == null || index % BLOCK_SIZE == 0) {
+                    synchronized (PathList.this) {
+                        block = decode(readBlock(index / BLOCK_SIZE));
+                    }
+                }
+                String path = block[index % BLOCK_SIZE];
+                if (path == null) {
+                    // block was still being filled when decoded
+                    synchronized (PathList.this) {
+                        block = decode(readBlock(index / BLOCK_SIZE));
+                    }
+                    path = block[index % BLOCK_SIZE];
+                }
+                index++;
+                return path;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return true if paths have been spilled to a temporary file
+     */
+    public synchronized boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @return number of bytes paths take, in memory or in the temporary file
+     */
+    public synchronized long getEncodedSize() {
+        return memoryBytes + current.size();
+    }
+
+    /**
+     * empties the list and deletes its temporary file, if any
+     */
+    public synchronized void dispose() {
+        blocks.clear();
+        blockOffsets = new long[0];
+        nbBlocks = 0;
+        memoryBytes = 0;
+        current.reset();
+        last = null;
+        size = 0;
+        modCount++;
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                // nothing else to do than deleting it
+            }
+            spill = null;
+        }
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+    }
+
+    private void seal() {
+        byte[] block = current.toByteArray();
+        current.reset();
+        last = null;
+        try {
+            if (spill != null) {
+                writeBlock(block);
+            } else {
+                blocks.add(block);
+                nbBlocks++;
+            }
+            memoryBytes += block.length;
+            if (spill == null && spillThreshold > 0 && memoryBytes > spillThreshold) {
+                file = File.createTempFile("typecleanup-paths", ".bin");
+                file.deleteOnExit();
+                spill = new RandomAccessFile(file, "rw");
+                nbBlocks = 0;
+                for (byte[] memoryBlock : blocks) {
+                    writeBlock(memoryBlock);
+                }
+                blocks.clear();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to spill paths to " + file, e);
+        }
+    }
+
+    private void writeBlock(byte[] block) throws IOException {
+        if (nbBlocks + 1 >= blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, Math.max(16, blockOffsets.length * 2));
+        }
+        long offset = nbBlocks == 0 ? 0 : blockOffsets[nbBlocks];
+        spill.seek(offset);
+        spill.write(block);
+        blockOffsets[nbBlocks + 1] = offset + block.length;
+        nbBlocks++;
+    }
+
+    private byte[] readBlock(int index) {
+        if (index >= nbBlocks) {
+            return current.toByteArray();
+        }
+        if (spill == null) {
+            return blocks.get(index);
+        }
+        try {
+            byte[] block = new byte[(int) (blockOffsets[index + 1] - blockOffsets[index])];
+            spill.seek(blockOffsets[index]);
+            spill.readFully(block);
+            return block;
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to read paths from " + file, e);
+        }
+    }
+
+    private static String[] decode(byte[] block) {
+        String[] paths = new String[BLOCK_SIZE];
+        int[] position = new int[1];
+        String previous = "";
+        for (int i = 0; i < BLOCK_SIZE && position[0] < block.length; i++) {
+            int shared = readInt(block, position);
+            int length = readInt(block, position);
+            previous = previous.substring(0, shared) + new String(block, position[0], length, UTF8);
+            position[0] += length;
+            paths[i] = previous;
+        }
+        return paths;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readInt(byte[] in, int[] position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
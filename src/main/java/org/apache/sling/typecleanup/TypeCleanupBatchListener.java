@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup;
+
+import java.util.List;
+
+/**
+ * listener of a validation of submitted paths, that is also told when each batch of paths has been
+ * validated, along with the paths of that batch that have been ignored. Obsolete paths passed to it
+ * are kept in the wrapper the validation returns as well, for them to be removed afterwards.
+ */
+public interface TypeCleanupBatchListener extends TypeCleanupListener {
+
+    /**
+     * @param nbPaths number of paths of the batch, obsolete ones having been passed to {@link #obsolete(String, String)} already
+     * @param ignoredPaths paths of the batch that have been ignored, because they don't exist or are not obsolete
+     */
+    public void validated(int nbPaths, List<String> ignoredPaths);
+}
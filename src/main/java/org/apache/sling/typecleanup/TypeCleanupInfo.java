@@ -22,40 +22,448 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * wrapper that gathers information around the cleanup
+ * wrapper that gathers information around the cleanup, safe to be filled by concurrent scan workers
  */
 public class TypeCleanupInfo {
-    List<String> paths = new ArrayList<String>();
+    final PathList paths;
     /**
      * this is meant to store parameterized path by users (for removal) that have been
      * ignored either because they are in conflict with configuration, or because they
      * don't exist
      */
-    List<String> ignoredPaths = new ArrayList<String>();
+    final PathList ignoredPaths;
 
     long nbResourceParsed = 0;
 
+    long nbObsolete = 0;
+
+    long nbTypeCacheHits = 0;
+
+    long nbTypeCacheMisses = 0;
+
+    long nbPruned = 0;
+
+    /**
+     * commits of the removal of obsolete paths, in order
+     */
+    List<Batch> batches = new ArrayList<Batch>();
+
+    long nbRemoved = 0;
+
+    /**
+     * outcome of each partition of a parallel removal
+     */
+    List<Partition> partitions = new ArrayList<Partition>();
+
+    /**
+     * counts of each root of a scan, in the order they have been scanned
+     */
+    List<Root> roots = new ArrayList<Root>();
+
+    /**
+     * position a paused scan can be resumed from
+     */
+    String resumePath;
+
+    /**
+     * id of the report obsolete paths have been written to
+     */
+    String reportId;
+
+    volatile boolean cancelled;
+
+    /**
+     * receives obsolete paths as they are added, null if they are only kept in {@link #paths}
+     */
+    final TypeCleanupListener listener;
+
+    /**
+     * wrapper keeping obsolete paths
+     */
+    public TypeCleanupInfo() {
+        this(null);
+    }
+
+    /**
+     * wrapper streaming obsolete paths to a listener, without keeping them
+     * @param listener
+     */
+    public TypeCleanupInfo(TypeCleanupListener listener) {
+        this(listener, 0);
+    }
+
+    /**
+     * @param listener listener obsolete paths are streamed to, null to keep them
+     * @param spillThreshold number of encoded bytes above which kept paths are spilled to a temporary
+     * file (see {@link PathList}), 0 to keep them in memory
+     */
+    public TypeCleanupInfo(TypeCleanupListener listener, long spillThreshold) {
+        this.listener = listener;
+        this.paths = new PathList(spillThreshold);
+        this.ignoredPaths = new PathList(spillThreshold);
+    }
+
     public void add(String path){
-        paths.add(path);
+        add(path, null);
+    }
+
+    /**
+     * @param path obsolete path
+     * @param resourceType its missing resource type, if known
+     */
+    public synchronized void add(String path, String resourceType){
+        nbObsolete ++;
+        if (listener != null) {
+            listener.obsolete(path, resourceType);
+        } else {
+            paths.add(path);
+        }
     }
 
-    public void addIgnoredPath(String path) {
+    public synchronized void addIgnoredPath(String path) {
         ignoredPaths.add(path);
     }
 
-    public void traverse() {
+    public synchronized void traverse() {
         nbResourceParsed ++;
     }
 
-    public List<String> getPaths() {
+    public synchronized void typeCacheHit() {
+        nbTypeCacheHits ++;
+    }
+
+    public synchronized void typeCacheMiss() {
+        nbTypeCacheMisses ++;
+    }
+
+    public synchronized void prune() {
+        nbPruned ++;
+    }
+
+    /**
+     * @param nbNodes number of nodes the commit removed
+     * @param duration time the commit took, in ms, retries included
+     * @param nbRetries number of times the commit has been retried after a conflict
+     */
+    public synchronized void addBatch(int nbNodes, long duration, int nbRetries) {
+        batches.add(new Batch(nbNodes, duration, nbRetries));
+        nbRemoved += nbNodes;
+    }
+
+    /**
+     * @param nbPaths number of paths the partition had to remove
+     * @param nbRemoved number of nodes the partition removed and committed
+     * @param error why the partition failed, null if it succeeded
+     */
+    public synchronized void addPartition(int nbPaths, long nbRemoved, String error) {
+        partitions.add(new Partition(partitions.size(), nbPaths, nbRemoved, error));
+    }
+
+    /**
+     * @param path root the scan went through
+     * @param nbResourceParsed number of resources traversed under that root
+     * @param nbObsolete number of obsolete resources found under that root
+     */
+    public synchronized void addRoot(String path, long nbResourceParsed, long nbObsolete) {
+        roots.add(new Root(path, nbResourceParsed, nbObsolete));
+    }
+
+    /**
+     * merges what another wrapper gathered (e.g. by a scan worker) into this one
+     * @param other
+     */
+    public void merge(TypeCleanupInfo other) {
+        TypeCleanupInfo snapshot = new TypeCleanupInfo();
+        synchronized (other) {
+            snapshot.paths.addAll(other.paths);
+            snapshot.ignoredPaths.addAll(other.ignoredPaths);
+            snapshot.nbResourceParsed = other.nbResourceParsed;
+            snapshot.nbObsolete = other.nbObsolete;
+            snapshot.nbTypeCacheHits = other.nbTypeCacheHits;
+            snapshot.nbTypeCacheMisses = other.nbTypeCacheMisses;
+            snapshot.nbPruned = other.nbPruned;
+            snapshot.batches.addAll(other.batches);
+            snapshot.nbRemoved = other.nbRemoved;
+        }
+        synchronized (this) {
+            for (String path : snapshot.paths) {
+                if (listener != null) {
+                    listener.obsolete(path, null);
+                } else {
+                    paths.add(path);
+                }
+            }
+            ignoredPaths.addAll(snapshot.ignoredPaths);
+            nbResourceParsed += snapshot.nbResourceParsed;
+            nbObsolete += snapshot.nbObsolete;
+            nbTypeCacheHits += snapshot.nbTypeCacheHits;
+            nbTypeCacheMisses += snapshot.nbTypeCacheMisses;
+            nbPruned += snapshot.nbPruned;
+            batches.addAll(snapshot.batches);
+            nbRemoved += snapshot.nbRemoved;
+        }
+    }
+
+    /**
+     * merges counts another wrapper gathered, but not its obsolete paths nor their number (e.g. when they
+     * have been added one by one already), along with its roots and resume position
+     * @param other
+     */
+    public void mergeCounts(TypeCleanupInfo other) {
+        TypeCleanupInfo snapshot = new TypeCleanupInfo();
+        synchronized (other) {
+            snapshot.ignoredPaths.addAll(other.ignoredPaths);
+            snapshot.nbResourceParsed = other.nbResourceParsed;
+            snapshot.nbTypeCacheHits = other.nbTypeCacheHits;
+            snapshot.nbTypeCacheMisses = other.nbTypeCacheMisses;
+            snapshot.nbPruned = other.nbPruned;
+            snapshot.roots.addAll(other.roots);
+            snapshot.resumePath = other.resumePath;
+        }
+        synchronized (this) {
+            ignoredPaths.addAll(snapshot.ignoredPaths);
+            nbResourceParsed += snapshot.nbResourceParsed;
+            nbTypeCacheHits += snapshot.nbTypeCacheHits;
+            nbTypeCacheMisses += snapshot.nbTypeCacheMisses;
+            nbPruned += snapshot.nbPruned;
+            roots.addAll(snapshot.roots);
+            if (snapshot.resumePath != null) {
+                resumePath = snapshot.resumePath;
+            }
+        }
+    }
+
+    /**
+     * asks the scan filling this wrapper to stop as soon as possible
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized void setResumePath(String resumePath) {
+        this.resumePath = resumePath;
+    }
+
+    public synchronized void setReportId(String reportId) {
+        this.reportId = reportId;
+    }
+
+    /**
+     * releases kept paths, and the temporary files they might have been spilled to
+     */
+    public synchronized void dispose() {
+        paths.dispose();
+        ignoredPaths.dispose();
+    }
+
+    /**
+     * @return obsolete paths, empty if they have been streamed to a listener
+     */
+    public synchronized List<String> getPaths() {
         return paths;
     }
 
-    public long getNbResourceParsed() {
+    public synchronized long getNbResourceParsed() {
         return nbResourceParsed;
     }
 
-    public List<String> getIgnoredPaths() {
+    /**
+     * @return number of obsolete paths, whether they have been kept or streamed
+     */
+    public synchronized long getNbObsolete() {
+        return nbObsolete;
+    }
+
+    public synchronized List<String> getIgnoredPaths() {
         return ignoredPaths;
     }
+
+    /**
+     * @return number of resource type existence checks answered by the type cache
+     */
+    public synchronized long getNbTypeCacheHits() {
+        return nbTypeCacheHits;
+    }
+
+    /**
+     * @return number of resource type existence checks that needed a repository lookup
+     */
+    public synchronized long getNbTypeCacheMisses() {
+        return nbTypeCacheMisses;
+    }
+
+    /**
+     * @return number of resources whose children have not been traversed because of pruning rules
+     */
+    public synchronized long getNbPruned() {
+        return nbPruned;
+    }
+
+    /**
+     * @return path the scan should be resumed from (see {@link TypeCleanupOptions#setResumePath(String)}),
+     * null if it has been complete
+     */
+    public synchronized String getResumePath() {
+        return resumePath;
+    }
+
+    /**
+     * @return id of the report obsolete paths have been written to (see {@link TypeCleanupOptions#setReport(boolean)}),
+     * null if there is none
+     */
+    public synchronized String getReportId() {
+        return reportId;
+    }
+
+    /**
+     * @return commits of the removal of obsolete paths, in order
+     */
+    public synchronized List<Batch> getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return number of nodes the removal of obsolete paths committed, descendants included
+     */
+    public synchronized long getNbRemoved() {
+        return nbRemoved;
+    }
+
+    /**
+     * one commit of the removal of obsolete paths
+     */
+    public static class Batch {
+        final int nbNodes;
+
+        final long duration;
+
+        final int nbRetries;
+
+        Batch(int nbNodes, long duration, int nbRetries) {
+            this.nbNodes = nbNodes;
+            this.duration = duration;
+            this.nbRetries = nbRetries;
+        }
+
+        public int getNbNodes() {
+            return nbNodes;
+        }
+
+        /**
+         * @return time the commit took, in ms, retries included
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        public int getNbRetries() {
+            return nbRetries;
+        }
+    }
+
+    /**
+     * @return outcome of each partition of a parallel removal, empty if removal was sequential
+     */
+    public synchronized List<Partition> getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @return number of partitions of a parallel removal that failed, their further paths not being removed
+     */
+    public synchronized int getNbFailedPartitions() {
+        int failed = 0;
+        for (Partition partition : partitions) {
+            if (!partition.isSucceeded()) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * outcome of a partition of a parallel removal, i.e. of paths removed with their own session
+     */
+    public static class Partition {
+        final int index;
+
+        final int nbPaths;
+
+        final long nbRemoved;
+
+        final String error;
+
+        Partition(int index, int nbPaths, long nbRemoved, String error) {
+            this.index = index;
+            this.nbPaths = nbPaths;
+            this.nbRemoved = nbRemoved;
+            this.error = error;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getNbPaths() {
+            return nbPaths;
+        }
+
+        /**
+         * @return number of nodes removed and committed, descendants included, even if the partition failed
+         */
+        public long getNbRemoved() {
+            return nbRemoved;
+        }
+
+        /**
+         * @return why the partition failed, its further paths not being removed, null if it succeeded
+         */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isSucceeded() {
+            return error == null;
+        }
+    }
+
+    /**
+     * @return counts of each root of the scan, in the order they have been scanned
+     */
+    public synchronized List<Root> getRoots() {
+        return roots;
+    }
+
+    /**
+     * counts of one root of a scan
+     */
+    public static class Root {
+        final String path;
+
+        final long nbResourceParsed;
+
+        final long nbObsolete;
+
+        Root(String path, long nbResourceParsed, long nbObsolete) {
+            this.path = path;
+            this.nbResourceParsed = nbResourceParsed;
+            this.nbObsolete = nbObsolete;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getNbResourceParsed() {
+            return nbResourceParsed;
+        }
+
+        public long getNbObsolete() {
+            return nbObsolete;
+        }
+    }
 }
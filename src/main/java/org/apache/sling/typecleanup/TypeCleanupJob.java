@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup;
+
+/**
+ * handle on a scan running asynchronously, see {@link TypeCleanupService#submit}
+ */
+public interface TypeCleanupJob {
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        /**
+         * @return true if the job won't change anymore
+         */
+        public boolean isFinished() {
+            return this == SUCCEEDED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    public String getId();
+
+    /**
+     * @return root path of the scan
+     */
+    public String getPath();
+
+    public State getState();
+
+    /**
+     * @return number of resources traversed so far
+     */
+    public long getNbResourceParsed();
+
+    /**
+     * @return number of obsolete resources found so far
+     */
+    public long getNbObsolete();
+
+    /**
+     * @return resources traversed per second since the job started, 0 if it didn't
+     */
+    public double getRate();
+
+    /**
+     * @return estimated number of milliseconds before the job ends, based on the size of the
+     * last complete scan of the same path, -1 if unknown
+     */
+    public long getEta();
+
+    /**
+     * @return scan results once the job is finished, null before
+     */
+    public TypeCleanupInfo getResult();
+
+    /**
+     * @return message of the error the job failed with, null if it didn't
+     */
+    public String getError();
+}
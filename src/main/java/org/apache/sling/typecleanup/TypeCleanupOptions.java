@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup;
+
+/**
+ * options of a scan for obsolete resources, defaults being a complete scan of the tree
+ */
+public class TypeCleanupOptions {
+
+    /**
+     * ways of discovering obsolete resources in a tree
+     */
+    public enum Strategy {
+        /**
+         * walks every resource of the tree, reading its type and checking it. Costs one read per
+         * resource of the tree, whatever the number of obsolete ones, but needs no index, and
+         * considers every resource type, including the ones not set as sling:resourceType.
+         */
+        TRAVERSAL,
+        /**
+         * runs, for each inclusion prefix, an indexed query on sling:resourceType values starting with it,
+         * and only checks the resources it returns. Costs one query per inclusion prefix, plus one read per
+         * resource having an included type, so it is much cheaper than a traversal when such resources are
+         * few, but relies on an index of sling:resourceType to be efficient. Query results are not
+         * necessarily up to date with the latest changes, and the scan can't be paused nor resumed.
+         */
+        QUERY,
+        /**
+         * answers from the index of obsolete resources the service maintains with resource events, if
+         * configured and covering the tree, falling back to a traversal otherwise. Costs one read per
+         * indexed obsolete resource, but the index misses changes made while the instance was down.
+         */
+        INDEX,
+        /**
+         * checks again the obsolete resources the last incremental scan of the tree found, and traverses the
+         * subtrees whose change markers (e.g. jcr:lastModified) date after it, relying on a query. Costs one read
+         * per previously obsolete or changed resource, but only sees changes that are marked, and falls back to a
+         * traversal the first time, or if resource type definitions might have changed since the last scan.
+         */
+        INCREMENTAL
+    }
+
+    Strategy strategy = Strategy.TRAVERSAL;
+
+    String resumePath;
+
+    long maxResources = 0;
+
+    TypeCleanupListener listener;
+
+    boolean report;
+
+    /**
+     * @return path the scan resumes from, as returned by a previous scan's {@link TypeCleanupInfo#getResumePath()}
+     */
+    public String getResumePath() {
+        return resumePath;
+    }
+
+    /**
+     * @param resumePath path the scan resumes from, null to scan from the root
+     */
+    public void setResumePath(String resumePath) {
+        this.resumePath = resumePath;
+    }
+
+    /**
+     * @return maximum number of resources the scan traverses before pausing, 0 for no limit
+     */
+    public long getMaxResources() {
+        return maxResources;
+    }
+
+    /**
+     * @param maxResources maximum number of resources the scan traverses before pausing, 0 for no limit
+     */
+    public void setMaxResources(long maxResources) {
+        this.maxResources = maxResources;
+    }
+
+    /**
+     * @return listener obsolete paths are streamed to, null if they are kept in the scan's wrapper
+     */
+    public TypeCleanupListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @param listener listener obsolete paths are streamed to as the scan finds them, instead of
+     * being kept in the scan's wrapper
+     */
+    public void setListener(TypeCleanupListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return true if obsolete paths are written to a report a cleanup can later go through
+     */
+    public boolean isReport() {
+        return report;
+    }
+
+    /**
+     * @param report true to write obsolete paths and their missing types to a compressed report, whose id
+     * the scan's wrapper gives, instead of keeping them in the wrapper (they are still streamed to the listener)
+     */
+    public void setReport(boolean report) {
+        this.report = report;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @param strategy way of discovering obsolete resources, traversal being the default
+     */
+    public void setStrategy(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * @return true if the scan might stop before the end of the tree, or doesn't start from its beginning
+     */
+    public boolean isPartial() {
+        return resumePath != null || maxResources > 0;
+    }
+}
@@ -22,6 +22,7 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 
 import javax.jcr.RepositoryException;
+import java.util.Iterator;
 
 /**
  * Service offering to cleanup obsolete resources.
@@ -44,6 +45,26 @@ public interface TypeCleanupService {
      */
     public TypeCleanupInfo buildCleanupInfo(Resource root) throws Exception;
 
+    /**
+     * Get obsolete resources in a given tree, possibly pausing and resuming the scan, or streaming
+     * obsolete resources to a listener
+     * @param root
+     * @param options
+     * @return
+     */
+    public TypeCleanupInfo buildCleanupInfo(Resource root, TypeCleanupOptions options) throws Exception;
+
+    /**
+     * Get obsolete resources in several trees in one run, sharing resource type checks: roots are reduced
+     * to topmost ones, so that overlapping trees are traversed once, and roots that can't be read are
+     * reported as ignored paths. Results are merged, with counts of each root.
+     * @param resolver resolver the trees are read with
+     * @param paths root paths
+     * @param options options of the scan, that can't be partial if there are several roots
+     * @return
+     */
+    public TypeCleanupInfo buildCleanupInfo(ResourceResolver resolver, String[] paths, TypeCleanupOptions options) throws Exception;
+
     /**
      * Get obsolete resources from a given array
      * @param paths
@@ -52,9 +73,73 @@ public interface TypeCleanupService {
     public TypeCleanupInfo buildCleanupInfo(String [] paths);
 
     /**
-     * Remove resources passed in parameter
+     * Get obsolete resources from paths read one at a time, e.g. from a request body, validated by
+     * batches in hierarchical order: duplicates and descendants of paths found obsolete are dropped,
+     * and resource type checks are shared by the whole run
+     * @param paths
+     * @param options options whose listener, if any, obsolete paths are streamed to
+     * @return
+     */
+    public TypeCleanupInfo buildCleanupInfo(Iterator<String> paths, TypeCleanupOptions options);
+
+    /**
+     * Counts resources of each type in a given tree in one traversal, with a few sample paths of each type,
+     * and whether it exists
+     * @param root
+     * @return inventory candidate configurations can be evaluated against
+     */
+    public TypeInventory buildInventory(Resource root) throws Exception;
+
+    /**
+     * Evaluates a candidate configuration against an inventory, without reading the repository
+     * @param inventory
+     * @param inclusions candidate inclusion prefixes
+     * @param exclusions candidate exclusion prefixes
+     * @return resources and types the candidate would check, and find obsolete
+     */
+    public TypeInventory.Evaluation evaluate(TypeInventory inventory, String[] inclusions, String[] exclusions);
+
+    /**
+     * Submits a scan of a given tree running asynchronously, with its own clone of the resolver
+     * @param resolver resolver the tree is read with
+     * @param path root path of the scan
+     * @param options
+     * @return job handle
+     * @throws java.util.concurrent.RejectedExecutionException if too many scans are already running or queued
+     */
+    public TypeCleanupJob submit(ResourceResolver resolver, String path, TypeCleanupOptions options) throws Exception;
+
+    /**
+     * @param id
+     * @return job with that id, null if there is none (or it is not retained anymore)
+     */
+    public TypeCleanupJob getJob(String id);
+
+    /**
+     * Cancels a job, that stops as soon as possible
+     * @param id
+     * @return true if the job exists and was not finished yet
+     */
+    public boolean cancel(String id);
+
+    /**
+     * Remove resources passed in parameter, in batched commits reported in the wrapper. When removal
+     * is configured to be parallel, each partition's failure is reported in the wrapper instead of
+     * being thrown, the other partitions going on.
      * @param resolver
      * @param infos wrapper containing resources to cleanup
      */
     public void cleanup(ResourceResolver resolver,TypeCleanupInfo infos) throws RepositoryException;
-}
\ No newline at end of file
+
+    /**
+     * Remove resources a scan reported, going through the report sequentially in batched commits: resources
+     * that are not obsolete anymore are reported as ignored in the returned wrapper
+     * @param resolver
+     * @param reportId id of the report, as given by the scan's wrapper
+     * @param listener listener removed paths are streamed to, null to keep them in the returned wrapper
+     * @return wrapper with the removal's counts and commits
+     * @throws java.io.FileNotFoundException if there is no complete report with that id
+     * @throws IllegalArgumentException if the id is not one of a report
+     */
+    public TypeCleanupInfo cleanup(ResourceResolver resolver, String reportId, TypeCleanupListener listener) throws Exception;
+}
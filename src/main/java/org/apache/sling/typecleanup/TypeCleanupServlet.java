@@ -18,6 +18,7 @@
  */
 package org.apache.sling.typecleanup;
 
+import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -26,6 +27,7 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.osgi.framework.Constants;
@@ -34,8 +36,14 @@ import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 @SlingServlet(
     label = "Apache Sling Type Cleanup list",
@@ -58,10 +66,31 @@ public class TypeCleanupServlet extends SlingAllMethodsServlet {
 
     private static final String PARAM_PATHS = "paths";
 
+    private static final String PARAM_FILE = "file";
+
+    private static final String PARAM_REPORT = "report";
+
     private static final String PARAM_ACTION = "action";
 
+    private static final String PARAM_STRATEGY = "strategy";
+
+    private static final String PARAM_JOB = "job";
+
+    private static final String PARAM_INVENTORY = "inventory";
+
+    private static final String PARAM_CANDIDATE = "candidate";
+
     private static final String ACTION_CLEANUP = "cleanup";
 
+    private static final String ACTION_SCAN = "scan";
+
+    private static final String ACTION_CANCEL = "cancel";
+
+    /**
+     * number of streamed obsolete paths after which output is flushed
+     */
+    private static final int FLUSH_SIZE = 100;
+
     @Reference
     TypeCleanupService typeCleanupService;
 
@@ -70,15 +99,36 @@ public class TypeCleanupServlet extends SlingAllMethodsServlet {
         try {
             if (!typeCleanupService.isConfigured()) {
                 response.getWriter().append("not configured.");
+            } else if (StringUtils.isNotBlank(request.getParameter(PARAM_JOB))) {
+                printJob(response, request.getParameter(PARAM_JOB));
             } else {
                 String path = (String) request.getParameter(PARAM_PATH);
+                String[] paths = request.getParameterValues(PARAM_PATH);
+                TypeCleanupOptions.Strategy strategy = getStrategy(request);
                 if (StringUtils.isBlank(path)){
                     response.getWriter().append("no path provided in parameter.");
+                } else if (Boolean.parseBoolean(request.getParameter(PARAM_INVENTORY))) {
+                    printInventory(request, response, path);
+                } else if (strategy == null) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    response.getWriter().append("invalid strategy parameter");
                 } else {
-                    Resource resource = request.getResourceResolver().getResource(path);
-                    TypeCleanupInfo infos  = typeCleanupService.buildCleanupInfo(resource);
-                    printTypeCleanupInfo(response, infos);
                     response.setStatus(HttpServletResponse.SC_OK);
+                    TypeCleanupOptions options = new TypeCleanupOptions();
+                    options.setStrategy(strategy);
+                    options.setListener(new StreamingListener(response.getWriter()));
+                    options.setReport(Boolean.parseBoolean(request.getParameter(PARAM_REPORT)));
+                    long start = System.currentTimeMillis();
+                    TypeCleanupInfo infos;
+                    Resource resource = paths.length > 1 ? null : request.getResourceResolver().getResource(path);
+                    if (resource == null) {
+                        infos = typeCleanupService.buildCleanupInfo(request.getResourceResolver(), paths, options);
+                    } else {
+                        infos = typeCleanupService.buildCleanupInfo(resource, options);
+                    }
+                    printSummary(response, infos);
+                    printRate(response, infos.getNbResourceParsed(), "resources traversed", start);
+                    infos.dispose();
                     response.getWriter().printf("done.");
                 }
             }
@@ -88,30 +138,252 @@ public class TypeCleanupServlet extends SlingAllMethodsServlet {
         }
     }
 
+    /**
+     * @param request
+     * @return requested discovery strategy, traversal if none, null if invalid
+     */
+    protected TypeCleanupOptions.Strategy getStrategy(SlingHttpServletRequest request) {
+        String strategy = request.getParameter(PARAM_STRATEGY);
+        if (StringUtils.isBlank(strategy)) {
+            return TypeCleanupOptions.Strategy.TRAVERSAL;
+        }
+        for (TypeCleanupOptions.Strategy value : TypeCleanupOptions.Strategy.values()) {
+            if (value.name().equalsIgnoreCase(strategy)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * prints the resource type inventory of a tree, most frequent types first, then how each candidate
+     * configuration, given as comma separated inclusions and exclusions separated by a pipe, does against it
+     * @param request
+     * @param response
+     * @param path
+     * @throws Exception
+     */
+    protected void printInventory(SlingHttpServletRequest request, SlingHttpServletResponse response, String path) throws Exception {
+        PrintWriter w = response.getWriter();
+        Resource resource = request.getResourceResolver().getResource(path);
+        if (resource == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            w.printf("no resource at %s.", path);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        long start = System.currentTimeMillis();
+        TypeInventory inventory = typeCleanupService.buildInventory(resource);
+        for (int index : inventory.getIndexesByCount()) {
+            w.printf("%s\t%d\t%s\t%s\n", inventory.getResourceType(index), inventory.getCount(index),
+                    TypeInventory.UNTYPED.equals(inventory.getResourceType(index)) ? "untyped" : inventory.isExisting(index) ? "exists" : "missing",
+                    StringUtils.join(inventory.getSamplePaths(index), " "));
+        }
+        printRate(response, inventory.getNbResourceParsed(), "resources inventoried", start);
+        String[] candidates = request.getParameterValues(PARAM_CANDIDATE);
+        if (candidates != null) {
+            for (String candidate : candidates) {
+                String[] lists = candidate.split("\\|", 2);
+                TypeInventory.Evaluation evaluation = typeCleanupService.evaluate(inventory, lists[0].split(","),
+                        lists.length > 1 ? lists[1].split(",") : new String[0]);
+                w.printf("candidate %s excluding %s: %d resources checked, %d obsolete resources of %d missing types %s\n",
+                        evaluation.getInclusions(), evaluation.getExclusions(), evaluation.getNbChecked(), evaluation.getNbObsolete(),
+                        evaluation.getObsoleteTypes().size(), evaluation.getObsoleteTypes());
+            }
+        }
+        w.printf("done.");
+    }
+
+    /**
+     * prints progress of a scan job, and its results once it is finished
+     * @param response
+     * @param id
+     * @throws IOException
+     */
+    protected void printJob(SlingHttpServletResponse response, String id) throws IOException {
+        TypeCleanupJob job = typeCleanupService.getJob(id);
+        PrintWriter w = response.getWriter();
+        if (job == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            w.printf("no job %s.", id);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        w.printf("job %s on %s is %s: %d resources traversed, %d obsolete resources, %.1f resources/s",
+                job.getId(), job.getPath(), job.getState(), job.getNbResourceParsed(), job.getNbObsolete(), job.getRate());
+        if (job.getEta() >= 0 && !job.getState().isFinished()) {
+            w.printf(", about %d s left", job.getEta() / 1000);
+        }
+        w.printf("\n");
+        if (job.getError() != null) {
+            w.printf("error: %s\n", job.getError());
+        }
+        if (job.getResult() != null) {
+            printTypeCleanupInfo(response, job.getResult());
+            w.printf("done.");
+        }
+    }
+
     protected void printTypeCleanupInfo(SlingHttpServletResponse response, TypeCleanupInfo infos) throws IOException {
         PrintWriter w = response.getWriter();
-        w.printf("%d resources traversed, %d obsolete resources\n", infos.getNbResourceParsed(), infos.getPaths().size());
+        int unflushed = 0;
         for (String obsoletePath : infos.getPaths()){
             w.printf("%s,\n", obsoletePath);
+            if (++unflushed >= FLUSH_SIZE) {
+                w.flush();
+                unflushed = 0;
+            }
+        }
+        printSummary(response, infos);
+    }
+
+    /**
+     * prints counts of a scan, and paths that have been ignored, once obsolete paths have been printed
+     * @param response
+     * @param infos
+     * @throws IOException
+     */
+    protected void printSummary(SlingHttpServletResponse response, TypeCleanupInfo infos) throws IOException {
+        PrintWriter w = response.getWriter();
+        w.printf("%d resources traversed, %d obsolete resources\n", infos.getNbResourceParsed(), infos.getNbObsolete());
+        if (infos.getNbPruned() > 0) {
+            w.printf("%d subtrees pruned\n", infos.getNbPruned());
+        }
+        if (infos.getReportId() != null) {
+            w.printf("report %s\n", infos.getReportId());
+        }
+        if (infos.getRoots().size() > 1) {
+            for (TypeCleanupInfo.Root root : infos.getRoots()) {
+                w.printf("%s: %d resources traversed, %d obsolete resources\n", root.getPath(), root.getNbResourceParsed(), root.getNbObsolete());
+            }
         }
         if (infos.getIgnoredPaths().size() > 0){
-            w.printf("%d configured paths were ignored:\n");
+            w.printf("%d configured paths were ignored:\n", infos.getIgnoredPaths().size());
             for (String ignoredPath : infos.getIgnoredPaths()){
                 w.printf("%s,\n", ignoredPath);
             }
         }
     }
 
+    /**
+     * prints the effective rate of an operation, throttling included
+     * @param response
+     * @param count number of items the operation went through
+     * @param what what items are
+     * @param start time the operation started at
+     * @throws IOException
+     */
+    protected void printRate(SlingHttpServletResponse response, long count, String what, long start) throws IOException {
+        long duration = Math.max(1, System.currentTimeMillis() - start);
+        response.getWriter().printf("%d %s in %d ms, %.1f/s\n", count, what, duration, count * 1000d / duration);
+    }
+
+    /**
+     * prints commits a cleanup has been done with
+     * @param response
+     * @param infos
+     * @throws IOException
+     */
+    protected void printBatches(SlingHttpServletResponse response, TypeCleanupInfo infos) throws IOException {
+        PrintWriter w = response.getWriter();
+        w.printf("%d nodes removed in %d commits\n", infos.getNbRemoved(), infos.getBatches().size());
+        int index = 0;
+        for (TypeCleanupInfo.Batch batch : infos.getBatches()) {
+            w.printf("commit %d: %d nodes in %d ms, %d retries\n", ++index, batch.getNbNodes(), batch.getDuration(), batch.getNbRetries());
+        }
+        for (TypeCleanupInfo.Partition partition : infos.getPartitions()) {
+            w.printf("partition %d: %d paths, %d nodes removed, %s\n", partition.getIndex(), partition.getNbPaths(), partition.getNbRemoved(),
+                    partition.isSucceeded() ? "succeeded" : "failed: " + partition.getError());
+        }
+    }
+
+    /**
+     * writes obsolete paths as they are found, flushing them by chunks
+     */
+    private static class StreamingListener implements TypeCleanupListener {
+        final PrintWriter writer;
+        private int unflushed = 0;
+
+        StreamingListener(PrintWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void obsolete(String path, String resourceType) {
+            writer.printf("%s,\n", path);
+            if (++unflushed >= FLUSH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            writer.flush();
+            unflushed = 0;
+        }
+    }
+
+    /**
+     * writes submitted paths as their batches are validated, obsolete ones as they are found and ignored ones
+     * once their batch is done
+     */
+    private static class ValidationListener extends StreamingListener implements TypeCleanupBatchListener {
+
+        ValidationListener(PrintWriter writer) {
+            super(writer);
+        }
+
+        @Override
+        public void validated(int nbPaths, List<String> ignoredPaths) {
+            for (String ignoredPath : ignoredPaths) {
+                writer.printf("ignored %s\n", ignoredPath);
+            }
+            writer.printf("%d paths validated, %d ignored\n", nbPaths, ignoredPaths.size());
+            flush();
+        }
+    }
+
     @Override
     protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException {
         try {
             String action = request.getParameter(PARAM_ACTION);
-            if (StringUtils.isNotBlank(action) && action.equals(ACTION_CLEANUP)) {
+            if (ACTION_SCAN.equals(action)) {
+                submitJob(request, response);
+            } else if (ACTION_CANCEL.equals(action)) {
+                String id = request.getParameter(PARAM_JOB);
+                if (StringUtils.isNotBlank(id) && typeCleanupService.cancel(id)) {
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    response.getWriter().printf("job %s cancelled.", id);
+                } else {
+                    response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                    response.getWriter().printf("no running job %s.", id);
+                }
+            } else if (StringUtils.isNotBlank(action) && action.equals(ACTION_CLEANUP)
+                    && StringUtils.isNotBlank(request.getParameter(PARAM_REPORT))) {
+                cleanupReport(request, response, request.getParameter(PARAM_REPORT));
+            } else if (StringUtils.isNotBlank(action) && action.equals(ACTION_CLEANUP)) {
                 String pathsString = request.getParameter(PARAM_PATHS);
-                String[] paths = pathsString.split(",");
-                TypeCleanupInfo infos = typeCleanupService.buildCleanupInfo(paths);
+                TypeCleanupInfo infos;
+                if (pathsString != null) {
+                    infos = typeCleanupService.buildCleanupInfo(pathsString.split(","));
+                    printTypeCleanupInfo(response, infos);
+                } else {
+                    TypeCleanupOptions options = new TypeCleanupOptions();
+                    options.setListener(new ValidationListener(response.getWriter()));
+                    LineIterator lines = new LineIterator(getBodyReader(request));
+                    try {
+                        infos = typeCleanupService.buildCleanupInfo(new SubmittedPaths(lines), options);
+                    } finally {
+                        LineIterator.closeQuietly(lines);
+                    }
+                    response.getWriter().printf("%d paths validated, %d obsolete resources, %d ignored\n",
+                            infos.getNbResourceParsed(), infos.getNbObsolete(), infos.getIgnoredPaths().size());
+                    response.getWriter().flush();
+                }
+                long start = System.currentTimeMillis();
                 typeCleanupService.cleanup(request.getResourceResolver(), infos);
-                printTypeCleanupInfo(response, infos);
+                printBatches(response, infos);
+                printRate(response, infos.getNbRemoved(), "nodes removed", start);
+                infos.dispose();
                 response.setStatus(HttpServletResponse.SC_OK);
             } else {
                 response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -123,4 +395,101 @@ public class TypeCleanupServlet extends SlingAllMethodsServlet {
         }
     }
 
+    /**
+     * removes obsolete resources of a report, streaming their paths as they are removed
+     * @param request
+     * @param response
+     * @param reportId
+     * @throws Exception
+     */
+    protected void cleanupReport(SlingHttpServletRequest request, SlingHttpServletResponse response, String reportId) throws Exception {
+        TypeCleanupInfo infos;
+        long start = System.currentTimeMillis();
+        try {
+            infos = typeCleanupService.cleanup(request.getResourceResolver(), reportId, new StreamingListener(response.getWriter()));
+        } catch (FileNotFoundException e) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().printf("no report %s.", reportId);
+            return;
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().printf("no report %s.", reportId);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        printSummary(response, infos);
+        printBatches(response, infos);
+        printRate(response, infos.getNbRemoved(), "nodes removed", start);
+        infos.dispose();
+    }
+
+    /**
+     * @param request
+     * @return reader of the uploaded file parameter if any, of the request body otherwise
+     * @throws IOException
+     */
+    protected Reader getBodyReader(SlingHttpServletRequest request) throws IOException {
+        RequestParameter file = request.getRequestParameter(PARAM_FILE);
+        if (file != null && !file.isFormField()) {
+            return new InputStreamReader(file.getInputStream(), "UTF-8");
+        }
+        return request.getReader();
+    }
+
+    /**
+     * submitted paths, one per line, a trailing comma being dropped so that obsolete paths
+     * a scan returned can be posted back as they are
+     */
+    private static class SubmittedPaths implements Iterator<String> {
+        private final LineIterator lines;
+
+        SubmittedPaths(LineIterator lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return lines.hasNext();
+        }
+
+        @Override
+        public String next() {
+            return StringUtils.removeEnd(lines.nextLine().trim(), ",");
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * submits an asynchronous scan of the path parameter, and prints the id of its job
+     * @param request
+     * @param response
+     * @throws Exception
+     */
+    protected void submitJob(SlingHttpServletRequest request, SlingHttpServletResponse response) throws Exception {
+        String path = request.getParameter(PARAM_PATH);
+        TypeCleanupOptions.Strategy strategy = getStrategy(request);
+        if (!typeCleanupService.isConfigured()) {
+            response.getWriter().append("not configured.");
+        } else if (StringUtils.isBlank(path) || strategy == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().append("invalid path or strategy parameter");
+        } else {
+            TypeCleanupOptions options = new TypeCleanupOptions();
+            options.setStrategy(strategy);
+            options.setReport(Boolean.parseBoolean(request.getParameter(PARAM_REPORT)));
+            try {
+                TypeCleanupJob job = typeCleanupService.submit(request.getResourceResolver(), path, options);
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                response.getWriter().printf("job %s submitted.", job.getId());
+            } catch (RejectedExecutionException e) {
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.getWriter().append("too many scans running, try again later.");
+            }
+        }
+    }
+
 }
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup;
+
+/**
+ * Statistics of the type cleanup service since its activation (or last reset), exposed through JMX.
+ * Counts are cumulative, so that rates can be computed by whatever polls them, latencies are
+ * approximated within a factor of two.
+ */
+public interface TypeCleanupStatsMBean {
+
+    String OBJECT_NAME = "org.apache.sling:type=TypeCleanup,name=Statistics";
+
+    /**
+     * @return number of nodes scans visited
+     */
+    long getNodesVisited();
+
+    /**
+     * @return number of nodes scans visited per second, since the previous time it has been read (at least a second ago)
+     */
+    double getNodesVisitedPerSecond();
+
+    /**
+     * @return number of resource type existence checks that needed a repository lookup
+     */
+    long getTypeLookups();
+
+    double getTypeLookupLatencyMeanMicros();
+
+    long getTypeLookupLatency95thMicros();
+
+    long getTypeLookupLatencyMaxMicros();
+
+    /**
+     * @return number of resource types checked against inclusions and exclusions
+     */
+    long getInclusionChecks();
+
+    /**
+     * @return mean time of inclusion checks, one in 64 of them being timed
+     */
+    double getInclusionCheckTimeMeanNanos();
+
+    long getInclusionCheckTime95thNanos();
+
+    long getTypeCacheHits();
+
+    long getTypeCacheMisses();
+
+    /**
+     * @return share of resource type existence checks answered by type caches, 0 if there was none
+     */
+    double getTypeCacheHitRatio();
+
+    /**
+     * @return number of obsolete resources found for each missing type, as type=count, most frequent first
+     */
+    String[] getObsoleteHitsPerType();
+
+    /**
+     * @return number of cleanup commits
+     */
+    long getSaves();
+
+    /**
+     * @return number of cleanup commits that conflicted, and have been retried
+     */
+    long getSaveConflicts();
+
+    double getSaveLatencyMeanMillis();
+
+    long getSaveLatency95thMillis();
+
+    long getSaveLatencyMaxMillis();
+
+    /**
+     * @return mean number of nodes a cleanup commit removed, descendants included
+     */
+    double getBatchSizeMean();
+
+    long getBatchSizeMax();
+
+    long getNodesRemoved();
+
+    /**
+     * @return number of scans currently running, asynchronous or not
+     */
+    int getActiveScans();
+
+    /**
+     * @return number of scans that finished, cancelled or not
+     */
+    long getCompletedScans();
+
+    long getFailedScans();
+
+    /**
+     * resets every statistic but the number of active scans
+     */
+    void reset();
+}
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Histogram of the resource types of a tree, built in one traversal: number of resources of each type,
+ * a few sample paths, and whether the type exists, resources without an explicit resource type being counted
+ * apart. Types are indexed in an open addressing table, their
+ * counts being kept in arrays, so that counting a resource allocates nothing. Inclusion and exclusion
+ * candidates can then be evaluated against the inventory without reading the repository again.
+ */
+public class TypeInventory {
+
+    /**
+     * number of sample paths kept for each type
+     */
+    public static final int MAX_SAMPLES = 3;
+
+    /**
+     * type resources without an explicit resource type are counted under, rather than under the node type
+     * their resource type defaults to, which is not a resource type that could be missing
+     */
+    public static final String UNTYPED = "";
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private String[] types = new String[INITIAL_CAPACITY];
+
+    private long[] counts = new long[INITIAL_CAPACITY];
+
+    private String[][] samples = new String[INITIAL_CAPACITY][];
+
+    private boolean[] existing = new boolean[INITIAL_CAPACITY];
+
+    /**
+     * index + 1 of the type hashed to each slot, 0 for free slots, at most half of them being used
+     */
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    private int size;
+
+    private long nbResourceParsed;
+
+    /**
+     * counts a resource
+     * @param resourceType explicit resource type of the resource, null if it has none
+     * @param path
+     */
+    public synchronized void add(String resourceType, String path) {
+        nbResourceParsed++;
+        int index = indexOf(resourceType != null ? resourceType : UNTYPED);
+        counts[index]++;
+        String[] typeSamples = samples[index];
+        if (typeSamples.length < MAX_SAMPLES) {
+            typeSamples = Arrays.copyOf(typeSamples, typeSamples.length + 1);
+            typeSamples[typeSamples.length - 1] = path;
+            samples[index] = typeSamples;
+        }
+    }
+
+    /**
+     * @param resourceType
+     * @return index of the type, added if it is not there yet
+     */
+    private int indexOf(String resourceType) {
+        int mask = slots.length - 1;
+        int slot = resourceType.hashCode() & mask;
+        while (slots[slot] != 0) {
+            int index = slots[slot] - 1;
+            if (types[index].equals(resourceType)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == types.length) {
+            grow();
+            return indexOf(resourceType);
+        }
+        types[size] = resourceType;
+        samples[size] = new String[0];
+        slots[slot] = ++size;
+        return size - 1;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        samples = Arrays.copyOf(samples, capacity);
+        existing = Arrays.copyOf(existing, capacity);
+        slots = new int[capacity * 2];
+        int mask = slots.length - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = types[index].hashCode() & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index + 1;
+        }
+    }
+
+    /**
+     * @param index
+     * @param exists true if the type at that index exists
+     */
+    public synchronized void setExisting(int index, boolean exists) {
+        existing[index] = exists;
+    }
+
+    /**
+     * @return number of distinct types
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getNbResourceParsed() {
+        return nbResourceParsed;
+    }
+
+    public synchronized String getResourceType(int index) {
+        return types[index];
+    }
+
+    public synchronized long getCount(int index) {
+        return counts[index];
+    }
+
+    public synchronized boolean isExisting(int index) {
+        return existing[index];
+    }
+
+    /**
+     * @param index
+     * @return first paths found with the type at that index
+     */
+    public synchronized List<String> getSamplePaths(int index) {
+        return Collections.unmodifiableList(Arrays.asList(samples[index]));
+    }
+
+    /**
+     * @return indexes of types, most frequent first
+     */
+    public synchronized List<Integer> getIndexesByCount() {
+        List<Integer> indexes = new ArrayList<Integer>(size);
+        for (int index = 0; index < size; index++) {
+            indexes.add(index);
+        }
+        final long[] snapshot = counts;
+        Collections.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer index1, Integer index2) {
+                long count1 = snapshot[index1];
+                long count2 = snapshot[index2];
+                return count1 > count2 ? -1 : count1 == count2 ? index1.compareTo(index2) : 1;
+            }
+        });
+        return indexes;
+    }
+
+    /**
+     * outcome of a candidate configuration of inclusions and exclusions, evaluated against an inventory
+     */
+    public static class Evaluation {
+        private final List<String> inclusions;
+        private final List<String> exclusions;
+        private long nbChecked;
+        private long nbObsolete;
+        private final List<String> obsoleteTypes = new ArrayList<String>();
+
+        public Evaluation(List<String> inclusions, List<String> exclusions) {
+            this.inclusions = Collections.unmodifiableList(new ArrayList<String>(inclusions));
+            this.exclusions = Collections.unmodifiableList(new ArrayList<String>(exclusions));
+        }
+
+        /**
+         * counts resources of a type the candidate includes
+         * @param resourceType
+         * @param count number of resources of that type
+         * @param exists true if the type exists
+         */
+        public void addIncluded(String resourceType, long count, boolean exists) {
+            nbChecked += count;
+            if (!exists) {
+                nbObsolete += count;
+                obsoleteTypes.add(resourceType);
+            }
+        }
+
+        public List<String> getInclusions() {
+            return inclusions;
+        }
+
+        public List<String> getExclusions() {
+            return exclusions;
+        }
+
+        /**
+         * @return number of resources whose type the candidate includes
+         */
+        public long getNbChecked() {
+            return nbChecked;
+        }
+
+        /**
+         * @return number of resources the candidate would find obsolete, descendants of obsolete ones included
+         */
+        public long getNbObsolete() {
+            return nbObsolete;
+        }
+
+        /**
+         * @return missing types the candidate includes
+         */
+        public List<String> getObsoleteTypes() {
+            return Collections.unmodifiableList(obsoleteTypes);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Removes nodes with commits bounded by the number of nodes they remove, descendants included.
+ * A subtree too big for one commit is removed bottom up, in several commits, each pass only keeping
+ * the paths of the nodes it removes. The bound adapts
+ * to how long commits take, commits failing on a conflict are retried with back-off, and each
+ * commit is reported in the cleanup's wrapper.
+ */
+class BatchRemover {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ResourceResolver resolver;
+
+    private final Session session;
+
+    private final TypeCleanupInfo infos;
+
+    private final int maxNodes;
+
+    private final long commitTarget;
+
+    private final int maxRetries;
+
+    private final long retryDelay;
+
+    private final long pause;
+
+    private final Throttle throttle;
+
+    private final TypeCleanupStats stats;
+
+    /**
+     * current bound of the number of nodes a commit removes
+     */
+    private int limit;
+
+    /**
+     * paths removed since last commit, in removal order
+     */
+    private final List<String> pending = new ArrayList<String>();
+
+    private int pendingNodes;
+
+    private long lastCommit;
+
+    /**
+     * @param resolver resolver nodes are removed with
+     * @param infos wrapper commits are reported in
+     * @param maxNodes maximum number of nodes a commit removes
+     * @param commitTarget duration, in ms, above which the number of nodes per commit is halved, 0 to keep it fixed
+     * @param maxRetries number of times a commit failing on a conflict is retried
+     * @param retryDelay delay, in ms, before the first retry, doubled for each following one
+     * @param pause minimum delay, in ms, between two commits
+     * @param throttle throttle nodes are removed with, commits reporting their duration to it
+     * @param stats statistics commits are reported in
+     */
+    BatchRemover(ResourceResolver resolver, TypeCleanupInfo infos, int maxNodes, long commitTarget, int maxRetries, long retryDelay, long pause,
+                 Throttle throttle, TypeCleanupStats stats) {
+        this.resolver = resolver;
+        this.session = resolver.adaptTo(Session.class);
+        this.infos = infos;
+        this.maxNodes = Math.max(1, maxNodes);
+        this.commitTarget = commitTarget;
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.pause = pause;
+        this.throttle = throttle;
+        this.stats = stats;
+        this.limit = this.maxNodes;
+    }
+
+    /**
+     * removes the node at path with its descendants, committing pending removals first if they would
+     * get over the bound
+     * @param path
+     * @throws RepositoryException
+     */
+    void remove(String path) throws RepositoryException {
+        Resource resource = resolver.getResource(path);
+        if (resource == null) {
+            return;
+        }
+        // counting stops past the bound, the subtree being removed in several commits anyway
+        int nbNodes = countNodes(resource, (int) Math.min(Integer.MAX_VALUE, limit + 1L));
+        if (pendingNodes > 0 && pendingNodes + nbNodes > limit) {
+            commit();
+        }
+        if (nbNodes <= limit) {
+            removeNode(path);
+            pending.add(path);
+            pendingNodes += nbNodes;
+        } else {
+            // each pass removes the bottom of what is left of the subtree, so that no more than
+            // a commit's worth of paths is ever kept
+            logger.info("removing more than {} nodes under {} in several commits", limit, path);
+            for (Resource rest = resource; rest != null; rest = resolver.getResource(path)) {
+                List<String> bottom = bottomOf(rest, limit);
+                for (String node : bottom) {
+                    removeNode(node);
+                    pending.add(node);
+                }
+                pendingNodes += bottom.size();
+                commit();
+            }
+        }
+    }
+
+    /**
+     * @param resource
+     * @param max number of nodes counting stops at
+     * @return number of nodes of the subtree of resource, resource included, at most max
+     */
+    private static int countNodes(Resource resource, int max) {
+        int count = 0;
+        ResourceCursor cursor = new ResourceCursor(resource, null);
+        while (count < max && cursor.next() != null) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param root
+     * @param max maximum number of paths returned
+     * @return paths of the first nodes of the subtree of root, root included, in post-order, i.e. nodes
+     * whose descendants all come before them, so that removing them never removes any other node
+     */
+    private static List<String> bottomOf(Resource root, int max) {
+        List<String> bottom = new ArrayList<String>();
+        Deque<Resource> resources = new ArrayDeque<Resource>();
+        Deque<Iterator<Resource>> children = new ArrayDeque<Iterator<Resource>>();
+        resources.push(root);
+        children.push(root.listChildren());
+        while (!resources.isEmpty() && bottom.size() < max) {
+            if (children.peek().hasNext()) {
+                Resource child = children.peek().next();
+                resources.push(child);
+                children.push(child.listChildren());
+            } else {
+                children.pop();
+                bottom.add(resources.pop().getPath());
+            }
+        }
+        return bottom;
+    }
+
+    /**
+     * commits pending removals, if any
+     * @throws RepositoryException
+     */
+    void commit() throws RepositoryException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (lastCommit > 0) {
+            sleep(lastCommit + pause - System.currentTimeMillis());
+        }
+        throttle.acquire(pendingNodes);
+        long start = System.currentTimeMillis();
+        long saveStart = System.nanoTime();
+        int retries = 0;
+        while (true) {
+            try {
+                logger.info("persisting removal of {} nodes...", pendingNodes);
+                session.save();
+                long latency = System.nanoTime() - saveStart;
+                throttle.record(latency);
+                stats.saved(pendingNodes, latency);
+                break;
+            } catch (InvalidItemStateException e) {
+                if (retries >= maxRetries) {
+                    throw e;
+                }
+                retries++;
+                stats.saveConflict();
+                logger.warn("commit conflicted, retrying ({}/{})", retries, maxRetries);
+                session.refresh(false);
+                sleep(retryDelay << (retries - 1));
+                saveStart = System.nanoTime();
+                for (String path : pending) {
+                    removeNode(path);
+                }
+            }
+        }
+        lastCommit = System.currentTimeMillis();
+        long duration = lastCommit - start;
+        infos.addBatch(pendingNodes, duration, retries);
+        pending.clear();
+        pendingNodes = 0;
+        if (commitTarget > 0) {
+            if (duration > commitTarget) {
+                limit = Math.max(1, limit / 2);
+            } else if (duration < commitTarget / 2) {
+                limit = (int) Math.min(maxNodes, limit * 2L);
+            }
+        }
+    }
+
+    /**
+     * @return current bound of the number of nodes a commit removes
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    private void removeNode(String path) throws RepositoryException {
+        if (session.nodeExists(path)) {
+            session.getNode(path).remove();
+        }
+    }
+
+    private void sleep(long delay) throws RepositoryException {
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RepositoryException("cleanup interrupted", e);
+            }
+        }
+    }
+}
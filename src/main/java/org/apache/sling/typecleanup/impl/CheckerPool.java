@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Administrative resolvers resource types are checked with, kept open between scans so that each scan
+ * doesn't pay for a login. Resolvers are refreshed before being handed out again, so that they see the
+ * latest type definitions; at most a given number of them is kept idle, further ones being closed.
+ */
+class CheckerPool {
+    private static final Logger logger = LoggerFactory.getLogger(CheckerPool.class);
+
+    private final Deque<ResourceResolver> idle = new ArrayDeque<ResourceResolver>();
+
+    private final int maxIdle;
+
+    private boolean closed;
+
+    /**
+     * @param maxIdle maximum number of resolvers kept open while not used, 0 for no pooling
+     */
+    CheckerPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @param factory factory new resolvers are opened with
+     * @return idle resolver, refreshed, or a new one if there is none
+     * @throws LoginException
+     */
+    ResourceResolver acquire(ResourceResolverFactory factory) throws LoginException {
+        for (ResourceResolver resolver = poll(); resolver != null; resolver = poll()) {
+            if (refresh(resolver)) {
+                return resolver;
+            }
+            resolver.close();
+        }
+        return factory.getAdministrativeResourceResolver(null);
+    }
+
+    /**
+     * hands a resolver back, closing it if the pool is full or closed
+     * @param resolver
+     */
+    void release(ResourceResolver resolver) {
+        if (resolver.isLive()) {
+            synchronized (this) {
+                if (!closed && idle.size() < maxIdle) {
+                    idle.push(resolver);
+                    return;
+                }
+            }
+            resolver.close();
+        }
+    }
+
+    /**
+     * closes idle resolvers, and the ones released later on
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        for (ResourceResolver resolver = poll(); resolver != null; resolver = poll()) {
+            resolver.close();
+        }
+    }
+
+    synchronized int getIdle() {
+        return idle.size();
+    }
+
+    private synchronized ResourceResolver poll() {
+        return idle.poll();
+    }
+
+    /**
+     * @param resolver
+     * @return true if the resolver is still usable, and now sees the latest state of the repository
+     */
+    private boolean refresh(ResourceResolver resolver) {
+        if (!resolver.isLive()) {
+            return false;
+        }
+        Session session = resolver.adaptTo(Session.class);
+        try {
+            if (session != null) {
+                session.refresh(false);
+            } else if (resolver.hasChanges()) {
+                resolver.revert();
+            }
+            return true;
+        } catch (RepositoryException e) {
+            logger.warn("unable to refresh pooled resolver, dropping it", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.apache.sling.typecleanup.TypeCleanupListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Scan in flight that several identical requests share. The request that started it runs it on its own
+ * thread, getting obsolete resources as they are found, so that a slow client of that request slows the
+ * scan down as it would if it wasn't shared. Requests attaching later get a buffer of their own, filled
+ * with the obsolete resources the scan found so far, then with the next ones as they are found, which
+ * they drain on their own thread, and get the scan's counts once it is complete. A late request whose
+ * buffer is full is detached and fails. The scan is cancelled once the request that started it has been
+ * cancelled and no other request is attached anymore. Requests can only attach as long as the scan runs,
+ * and as long as the obsolete resources to replay are few enough to be kept.
+ */
+class CoalescedScan implements TypeCleanupListener {
+
+    /**
+     * maximum number of obsolete resources kept for requests attaching late
+     */
+    static final int MAX_REPLAYED = 10000;
+
+    /**
+     * maximum number of obsolete resources waiting for a late request to take them
+     */
+    static final int MAX_BUFFERED = 10000;
+
+    /**
+     * time, in ms, after which a waiting request checks whether it has been cancelled
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    /**
+     * request attached to the scan
+     */
+    static class Attachment {
+        private final TypeCleanupInfo infos;
+
+        private final Deque<String[]> buffer = new ArrayDeque<String[]>();
+
+        private boolean dropped;
+
+        private Attachment(TypeCleanupInfo infos) {
+            this.infos = infos;
+        }
+    }
+
+    private final TypeCleanupInfo leader;
+
+    private final TypeCleanupInfo scan;
+
+    private final List<String[]> found = new ArrayList<String[]>();
+
+    private final List<Attachment> attached = new ArrayList<Attachment>();
+
+    /**
+     * number of attached requests, read by the scan without locking
+     */
+    private volatile int nbAttached;
+
+    private boolean open = true;
+
+    private boolean complete;
+
+    private Exception error;
+
+    /**
+     * @param leader wrapper of the results of the request running the scan
+     */
+    CoalescedScan(TypeCleanupInfo leader) {
+        this.leader = leader;
+        this.scan = new TypeCleanupInfo(this) {
+            @Override
+            public boolean isCancelled() {
+                return super.isCancelled() || isAbandoned();
+            }
+        };
+    }
+
+    /**
+     * @return wrapper the scan collects in, whose counts the leading request merges once the scan is done
+     */
+    TypeCleanupInfo getScan() {
+        return scan;
+    }
+
+    /**
+     * @return true if no request waits for the scan's results anymore
+     */
+    boolean isAbandoned() {
+        return leader.isCancelled() && nbAttached == 0;
+    }
+
+    /**
+     * @param infos wrapper of a late request's results
+     * @return attachment of the request, null if the scan can't be shared anymore
+     */
+    synchronized Attachment attach(TypeCleanupInfo infos) {
+        if (!open) {
+            return null;
+        }
+        Attachment attachment = new Attachment(infos);
+        attachment.buffer.addAll(found);
+        attached.add(attachment);
+        nbAttached = attached.size();
+        return attachment;
+    }
+
+    @Override
+    public void obsolete(String path, String resourceType) {
+        synchronized (this) {
+            if (open || !attached.isEmpty()) {
+                String[] obsolete = new String[] {path, resourceType};
+                if (open && found.size() < MAX_REPLAYED) {
+                    found.add(obsolete);
+                } else {
+                    close();
+                }
+                for (Iterator<Attachment> attachments = attached.iterator(); attachments.hasNext();) {
+                    Attachment attachment = attachments.next();
+                    if (attachment.buffer.size() < MAX_BUFFERED) {
+                        attachment.buffer.add(obsolete);
+                    } else {
+                        attachment.dropped = true;
+                        attachment.buffer.clear();
+                        attachments.remove();
+                    }
+                }
+                nbAttached = attached.size();
+                notifyAll();
+            }
+        }
+        if (!leader.isCancelled()) {
+            leader.add(path, resourceType);
+        }
+    }
+
+    /**
+     * @param error error the scan failed with, null if it didn't
+     */
+    synchronized void complete(Exception error) {
+        close();
+        complete = true;
+        this.error = error;
+        notifyAll();
+    }
+
+    /**
+     * adds obsolete resources of the scan to the wrapper of a late request as they come, and the scan's
+     * counts once it is complete, until the request is cancelled
+     * @param attachment
+     * @throws IllegalStateException if the request didn't keep up with the scan, and has been detached
+     * @throws Exception error the scan failed with
+     */
+    void await(Attachment attachment) throws Exception {
+        while (true) {
+            List<String[]> obsoletes;
+            boolean done;
+            synchronized (this) {
+                while (attachment.buffer.isEmpty() && !complete && !attachment.dropped && !attachment.infos.isCancelled()) {
+                    wait(POLL_INTERVAL);
+                }
+                if (attachment.dropped) {
+                    throw new IllegalStateException("request didn't keep up with the scan it shares, and has been detached from it");
+                }
+                if (attachment.infos.isCancelled()) {
+                    detach(attachment);
+                    return;
+                }
+                obsoletes = new ArrayList<String[]>(attachment.buffer);
+                attachment.buffer.clear();
+                done = complete;
+            }
+            for (String[] obsolete : obsoletes) {
+                attachment.infos.add(obsolete[0], obsolete[1]);
+            }
+            if (done) {
+                synchronized (this) {
+                    detach(attachment);
+                    if (error != null) {
+                        throw error;
+                    }
+                    attachment.infos.mergeCounts(scan);
+                }
+                return;
+            }
+        }
+    }
+
+    private void detach(Attachment attachment) {
+        attached.remove(attachment);
+        nbAttached = attached.size();
+    }
+
+    private void close() {
+        open = false;
+        found.clear();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of positive values, with a bucket per power of two: percentiles are
+ * approximated by the upper bound of the bucket they fall in, i.e. within a factor of two.
+ */
+class Histogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    void update(long value) {
+        long positive = Math.max(0, value);
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(positive | 1));
+        count.incrementAndGet();
+        sum.addAndGet(positive);
+        for (long current = max.get(); positive > current && !max.compareAndSet(current, positive); current = max.get()) {
+            // another thread updated the maximum, compare again
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    double getMean() {
+        long n = count.get();
+        return n > 0 ? sum.get() / (double) n : 0;
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return upper bound of the bucket the quantile falls in, 0 if there is no value
+     */
+    long getPercentile(double quantile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * n);
+        long cumulated = 0;
+        for (int i = 0; i < 64; i++) {
+            cumulated += buckets.get(i);
+            if (cumulated >= rank) {
+                return Math.min(max.get(), i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1);
+            }
+        }
+        return max.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < 64; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
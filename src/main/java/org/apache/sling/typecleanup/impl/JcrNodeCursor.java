@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.Iterator;
+
+/**
+ * cursor over a JCR node tree, for traversals that skip the resource layer: no resource,
+ * value map nor adapter is created per node, and the only property read is the resource type
+ */
+class JcrNodeCursor extends TreeCursor<Node> {
+
+    private final Session session;
+
+    JcrNodeCursor(Node root, String position) throws RepositoryException {
+        super(root, position);
+        this.session = root.getSession();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Iterator<Node> children(Node node) {
+        try {
+            return node.getNodes();
+        } catch (RepositoryException e) {
+            throw new IllegalStateException("unable to list children of a node", e);
+        }
+    }
+
+    @Override
+    protected String pathOf(Node node) {
+        try {
+            return node.getPath();
+        } catch (RepositoryException e) {
+            throw new IllegalStateException("unable to read path of a node", e);
+        }
+    }
+
+    @Override
+    protected Node resolve(String path) {
+        try {
+            return session.nodeExists(path) ? session.getNode(path) : null;
+        } catch (RepositoryException e) {
+            throw new IllegalStateException("unable to read " + path, e);
+        }
+    }
+
+    /**
+     * @param node
+     * @return resource type of the node, as the JCR resource provider computes it: its sling:resourceType,
+     * or the name of its primary node type if it has none
+     * @throws RepositoryException
+     */
+    static String resourceTypeOf(Node node) throws RepositoryException {
+        if (node.hasProperty(TypeCleanupServiceImpl.PN_RESOURCE_TYPE)) {
+            return node.getProperty(TypeCleanupServiceImpl.PN_RESOURCE_TYPE).getString();
+        }
+        return node.getPrimaryNodeType().getName();
+    }
+}
@@ -0,0 +1,575 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+/**
+ * Index of obsolete resources under some roots, kept up to date with resource events instead
+ * of scans: content added or changed with an included type that doesn't exist gets in, content
+ * whose type exists again, or that is removed, gets out, and removal of a type definition brings
+ * in content of that type. It holds every obsolete resource, not only topmost ones, and is
+ * persisted in a file so that it survives restarts. It is seeded by a bootstrap traversal when
+ * there is no persisted index for the configured roots and types. Entries of a persisted index are
+ * checked again when it is loaded, so that types defined or content changed while the instance was
+ * down don't leave wrong entries, but obsolete content added meanwhile is not seen.
+ * <p>
+ * Events are only queued by the handler, events of a same path being coalesced, and applied by a
+ * worker thread, so that event delivery never waits for repository reads. The file is rewritten
+ * at most every {@link #FLUSH_INTERVAL} ms, or every {@link #FLUSH_CHANGES} changes, and on close.
+ */
+class ObsoleteIndex implements EventHandler {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String ROOTS_HEADER = "#roots:";
+
+    private static final String INCLUSIONS_HEADER = "#inclusions:";
+
+    private static final String EXCLUSIONS_HEADER = "#exclusions:";
+
+    private static final String SEPARATOR = "\t";
+
+    /**
+     * maximum time, in ms, changes stay unpersisted
+     */
+    static final long FLUSH_INTERVAL = 10000;
+
+    /**
+     * number of changes after which the index is persisted, whatever the time since last time
+     */
+    static final int FLUSH_CHANGES = 1000;
+
+    /**
+     * maximum number of distinct paths queued: beyond it, events are dropped and the index is bootstrapped again
+     */
+    static final int MAX_PENDING = 100000;
+
+    private final TypeCleanupServiceImpl service;
+
+    private final List<String> roots;
+
+    private final File file;
+
+    /**
+     * obsolete paths, in hierarchical order, with their missing type
+     */
+    private TreeMap<String, String> entries = new TreeMap<String, String>(TopmostPaths.HIERARCHICAL);
+
+    private volatile boolean ready;
+
+    private volatile boolean closed;
+
+    /**
+     * resolver events are handled with
+     */
+    private ResourceResolver resolver;
+
+    private ScanContext context;
+
+    /**
+     * queued events, i.e. topic and resource type of the last event of each path, in the order paths last changed
+     */
+    private final LinkedHashMap<String, String[]> pending = new LinkedHashMap<String, String[]>();
+
+    /**
+     * true if events have been dropped since the worker last drained the queue
+     */
+    private boolean overflowed;
+
+    /**
+     * number of changes not persisted yet
+     */
+    private int dirty;
+
+    private long lastFlush = System.currentTimeMillis();
+
+    /**
+     * @param service
+     * @param roots paths whose descendants are indexed, none of them being a descendant of another
+     * @param file file the index is persisted in
+     */
+    ObsoleteIndex(TypeCleanupServiceImpl service, List<String> roots, File file) {
+        this.service = service;
+        this.roots = roots;
+        this.file = file;
+    }
+
+    /**
+     * loads the persisted index if it has been built for the same roots and types, checking its entries again
+     * @param resolver resolver resource events are handled with, owned by the index from now on
+     * @return true if the index is ready, false if it needs a bootstrap
+     */
+    synchronized boolean open(ResourceResolver resolver) {
+        if (closed) {
+            resolver.close();
+            return false;
+        }
+        this.resolver = resolver;
+        this.context = service.newScanContext(new TypeCleanupInfo(), resolver);
+        ready = load();
+        return ready;
+    }
+
+    /**
+     * starts the worker applying queued events
+     */
+    void start() {
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "typecleanup-index-events");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * stops the worker, persists pending changes, and releases the index's resolver
+     */
+    void close() {
+        synchronized (pending) {
+            closed = true;
+            pending.clear();
+            pending.notifyAll();
+        }
+        synchronized (this) {
+            flush();
+            if (resolver != null) {
+                resolver.close();
+                resolver = null;
+            }
+        }
+    }
+
+    /**
+     * queues a resource event of a type definition, or of content under the roots
+     * @param event
+     */
+    @Override
+    public void handleEvent(Event event) {
+        String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+        if (path == null) {
+            return;
+        }
+        synchronized (pending) {
+            if (closed) {
+                return;
+            }
+            if (pending.size() >= MAX_PENDING && !pending.containsKey(path)) {
+                overflowed = true;
+                return;
+            }
+            pending.remove(path);
+            pending.put(path, new String[] {event.getTopic(), (String) event.getProperty(SlingConstants.PROPERTY_RESOURCE_TYPE)});
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * applies queued events until the index is closed, persisting changes once enough of them, or
+     * enough time, accumulated
+     */
+    private void work() {
+        while (!closed) {
+            List<Map.Entry<String, String[]>> events;
+            boolean rebuild;
+            synchronized (pending) {
+                if (pending.isEmpty() && !overflowed && !closed) {
+                    try {
+                        pending.wait(FLUSH_INTERVAL);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                events = new ArrayList<Map.Entry<String, String[]>>(pending.entrySet());
+                pending.clear();
+                rebuild = overflowed;
+                overflowed = false;
+            }
+            try {
+                if (rebuild) {
+                    logger.warn("more than {} resource events queued, bootstrapping the index again", MAX_PENDING);
+                    ResourceResolver walker;
+                    synchronized (this) {
+                        walker = resolver;
+                    }
+                    if (walker != null) {
+                        bootstrap(walker);
+                    }
+                } else {
+                    for (Map.Entry<String, String[]> event : events) {
+                        if (TypeCleanupServiceImpl.isTypeDefinitionPath(event.getKey())) {
+                            typesChanged(event.getValue()[0], event.getKey());
+                        } else {
+                            contentChanged(event.getValue()[0], event.getKey(), event.getValue()[1]);
+                        }
+                    }
+                }
+                synchronized (this) {
+                    if (context != null) {
+                        context.flushStats();
+                    }
+                    if (dirty >= FLUSH_CHANGES || System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+                        flush();
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.error("unable to apply resource events to the index", e);
+            }
+        }
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    List<String> getRoots() {
+        return roots;
+    }
+
+    /**
+     * @param path
+     * @return true if path is one of the roots, or a descendant of one of them
+     */
+    boolean covers(String path) {
+        for (String root : roots) {
+            if (path.equals(root) || path.startsWith(root.endsWith("/") ? root : root + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * walks the roots to index every obsolete resource under them, in a new index that replaces
+     * the current one once the walk is done, so that answers keep being given meanwhile
+     * @param walker resolver roots are walked with
+     */
+    void bootstrap(ResourceResolver walker) {
+        logger.info("bootstrapping obsolete resources index of {}", roots);
+        ScanContext scan = service.newScanContext(new TypeCleanupInfo(), walker);
+        TreeMap<String, String> walked = new TreeMap<String, String>(TopmostPaths.HIERARCHICAL);
+        for (String rootPath : roots) {
+            Resource root = walker.getResource(rootPath);
+            if (root != null) {
+                ResourceCursor cursor = new ResourceCursor(root, null);
+                for (Resource resource = scan.next(cursor); resource != null && !closed; resource = scan.next(cursor)) {
+                    scan.infos.traverse();
+                    if (service.isObsolete(scan, resource)) {
+                        walked.put(resource.getPath(), resource.getResourceType());
+                    }
+                }
+            }
+        }
+        scan.flushStats();
+        if (!closed) {
+            synchronized (this) {
+                entries = walked;
+                ready = true;
+                dirty = 0;
+                lastFlush = System.currentTimeMillis();
+                save();
+            }
+            logger.info("obsolete resources index bootstrapped: {} resources traversed, {} obsolete", scan.infos.getNbResourceParsed(), walked.size());
+        }
+    }
+
+    /**
+     * updates the index with a content resource event
+     * @param topic resource event topic
+     * @param path path of the resource
+     * @param resourceType resource type carried by the event, if any
+     */
+    synchronized void contentChanged(String topic, String path, String resourceType) {
+        if (closed || !covers(path)) {
+            return;
+        }
+        boolean changed;
+        if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+            String prefix = path + "/";
+            changed = entries.remove(path) != null;
+            Map<String, String> descendants = entries.subMap(prefix, prefix + Character.MAX_VALUE);
+            changed |= !descendants.isEmpty();
+            descendants.clear();
+        } else {
+            refresh();
+            if (resourceType == null) {
+                Resource resource = resolver.getResource(path);
+                resourceType = resource != null ? resource.getResourceType() : null;
+            }
+            changed = check(path, resourceType);
+        }
+        if (changed) {
+            dirty++;
+        }
+    }
+
+    /**
+     * updates the index with a type definition resource event
+     * @param topic resource event topic
+     * @param path path of the type definition resource
+     */
+    synchronized void typesChanged(String topic, String path) {
+        if (closed) {
+            return;
+        }
+        refresh();
+        boolean changed = false;
+        List<String> types = typeForms(path);
+        if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+            for (String type : types) {
+                for (String root : roots) {
+                    Iterator<Resource> candidates = resolver.findResources(buildTypeQuery(root, type), Query.JCR_SQL2);
+                    while (candidates.hasNext()) {
+                        Resource candidate = candidates.next();
+                        changed |= check(candidate.getPath(), candidate.getResourceType());
+                    }
+                }
+            }
+        } else {
+            for (Map.Entry<String, String> entry : new ArrayList<Map.Entry<String, String>>(entries.entrySet())) {
+                for (String type : types) {
+                    if (entry.getValue().equals(type) || entry.getValue().startsWith(type + "/")) {
+                        changed |= check(entry.getKey(), entry.getValue());
+                        break;
+                    }
+                }
+            }
+        }
+        if (changed) {
+            dirty++;
+        }
+    }
+
+    /**
+     * lists topmost indexed obsolete resources of a tree that are readable with the tree's resolver
+     * @param root
+     * @param infos
+     * @return false if the index can't answer for that tree
+     */
+    boolean answer(Resource root, TypeCleanupInfo infos) {
+        TopmostPaths obsoletePaths = new TopmostPaths();
+        synchronized (this) {
+            if (!ready || closed || !covers(root.getPath())) {
+                return false;
+            }
+            String prefix = root.getPath().endsWith("/") ? root.getPath() : root.getPath() + "/";
+            for (Map.Entry<String, String> entry : entries.subMap(root.getPath(), prefix + Character.MAX_VALUE).entrySet()) {
+                infos.traverse();
+                obsoletePaths.add(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, String> obsolete : obsoletePaths.entries()) {
+            if (root.getResourceResolver().getResource(obsolete.getKey()) != null) {
+                infos.add(obsolete.getKey(), obsolete.getValue());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param path
+     * @param resourceType
+     * @return true if the index changed, i.e. the resource got in or out
+     */
+    private boolean check(String path, String resourceType) {
+        if (resourceType != null && context.matcher.isIncluded(resourceType) && !service.resourceTypeExists(context, resourceType)) {
+            return !resourceType.equals(entries.put(path, resourceType));
+        }
+        return entries.remove(path) != null;
+    }
+
+    /**
+     * @param path
+     * @return path, and its forms relative to search paths it is under
+     */
+    private List<String> typeForms(String path) {
+        List<String> forms = new ArrayList<String>();
+        forms.add(path);
+        for (String searchPath : resolver.getSearchPath()) {
+            if (path.startsWith(searchPath) && path.length() > searchPath.length()) {
+                forms.add(path.substring(searchPath.length()));
+            }
+        }
+        return forms;
+    }
+
+    /**
+     * @param rootPath
+     * @param type
+     * @return JCR-SQL2 query of resources under root path of that type, or of a type under it
+     */
+    static String buildTypeQuery(String rootPath, String type) {
+        String escapedType = type.replace("'", "''");
+        String escapedPrefix = type.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_").replace("'", "''");
+        return "SELECT * FROM [nt:base] AS resource WHERE ISDESCENDANTNODE(resource, '" + rootPath.replace("'", "''")
+                + "') AND (resource.[" + TypeCleanupServiceImpl.PN_RESOURCE_TYPE + "] = '" + escapedType
+                + "' OR resource.[" + TypeCleanupServiceImpl.PN_RESOURCE_TYPE + "] LIKE '" + escapedPrefix + "/%')";
+    }
+
+    /**
+     * makes latest changes visible to the index's session
+     */
+    private void refresh() {
+        Session session = resolver.adaptTo(Session.class);
+        if (session != null) {
+            try {
+                session.refresh(false);
+            } catch (RepositoryException e) {
+                logger.warn("unable to refresh index session", e);
+            }
+        }
+    }
+
+    /**
+     * @return header lines of the index file, i.e. roots and types it has been built for
+     */
+    private List<String> header() {
+        List<String> header = new ArrayList<String>();
+        header.add(ROOTS_HEADER + StringUtils.join(roots, ","));
+        header.add(INCLUSIONS_HEADER + StringUtils.join(context.matcher.getInclusions(), ","));
+        header.add(EXCLUSIONS_HEADER + StringUtils.join(context.matcher.getExclusions(), ","));
+        return header;
+    }
+
+    /**
+     * @return true if the persisted index has been loaded
+     */
+    private boolean load() {
+        if (file == null || !file.exists()) {
+            return false;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            for (String expected : header()) {
+                if (!expected.equals(reader.readLine())) {
+                    logger.info("persisted index has been built for other roots or types");
+                    return false;
+                }
+            }
+            entries.clear();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                int separator = line.indexOf(SEPARATOR);
+                if (separator > 0) {
+                    entries.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+            int loaded = entries.size();
+            verify();
+            logger.info("loaded {} indexed obsolete resources, {} of them not obsolete anymore", loaded, loaded - entries.size());
+            return true;
+        } catch (IOException e) {
+            logger.warn("unable to load persisted index", e);
+            entries.clear();
+            return false;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * removes loaded entries whose resource is gone, or not obsolete anymore
+     */
+    private void verify() {
+        for (Iterator<Map.Entry<String, String>> iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, String> entry = iterator.next();
+            Resource resource = resolver.getResource(entry.getKey());
+            if (resource == null || !service.isObsolete(context, resource)) {
+                iterator.remove();
+                dirty++;
+            } else {
+                entry.setValue(resource.getResourceType());
+            }
+        }
+        context.flushStats();
+    }
+
+    /**
+     * persists changes, if any
+     */
+    private void flush() {
+        if (dirty > 0) {
+            save();
+            dirty = 0;
+        }
+        lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * persists the index, replacing the previous file once the new one is written
+     */
+    private void save() {
+        if (file == null || !ready) {
+            return;
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+            for (String line : header()) {
+                writer.write(line);
+                writer.newLine();
+            }
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                writer.write(entry.getKey() + SEPARATOR + entry.getValue());
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+            if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+                logger.warn("unable to replace persisted index {}", file);
+            }
+        } catch (IOException e) {
+            logger.warn("unable to persist index", e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel traversal of a resource tree. Subtrees are tasks shared by a fixed number of
+ * workers: a worker walks its subtree depth first, and hands descendants over as new tasks
+ * whenever there are fewer queued tasks than workers, so that idle workers always get some.
+ * Each worker walks and checks with its own resolvers, JCR sessions not being thread safe,
+ * and counts in its own wrapper, regularly merged into the scan's wrapper, while obsolete
+ * paths go straight to the scan's wrapper so that they can be streamed. Obsolete paths
+ * are the same as the ones of the sequential traversal, possibly in a different order.
+ */
+class ParallelScan {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final long POLL_TIMEOUT = 50;
+
+    private final TypeCleanupServiceImpl service;
+
+    private final ScanContext scan;
+
+    private final ExecutorService executor;
+
+    private final int parallelism;
+
+    private final BlockingDeque<String> tasks = new LinkedBlockingDeque<String>();
+
+    /**
+     * number of tasks either queued or being walked
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile boolean failed;
+
+    /**
+     * number of resources after which a worker reports its counts to the scan
+     */
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    ParallelScan(TypeCleanupServiceImpl service, ScanContext scan, ExecutorService executor, int parallelism) {
+        this.service = service;
+        this.scan = scan;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * walks the tree under root with all workers, and returns once they are all done
+     * @param root
+     * @throws Exception first error a worker ran into
+     */
+    void run(Resource root) throws Exception {
+        List<ResourceResolver> resolvers = new ArrayList<ResourceResolver>();
+        List<ResourceResolver> checkers = new ArrayList<ResourceResolver>();
+        List<Future<TypeCleanupInfo>> workers = new ArrayList<Future<TypeCleanupInfo>>();
+        Exception error = null;
+        try {
+            submit(root.getPath());
+            try {
+                for (int i = 0; i < parallelism; i++) {
+                    ResourceResolver walker = root.getResourceResolver().clone(null);
+                    resolvers.add(walker);
+                    ResourceResolver checker = service.acquireChecker();
+                    checkers.add(checker);
+                    workers.add(executor.submit(new Worker(walker, checker)));
+                }
+            } catch (Exception e) {
+                failed = true;
+                error = e;
+            }
+            for (Future<TypeCleanupInfo> worker : workers) {
+                try {
+                    scan.infos.merge(worker.get());
+                } catch (ExecutionException e) {
+                    if (error == null && e.getCause() instanceof Exception) {
+                        error = (Exception) e.getCause();
+                    }
+                    logger.error("scan worker failed", e.getCause());
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            failed = true;
+            for (ResourceResolver resolver : resolvers) {
+                resolver.close();
+            }
+            for (ResourceResolver checker : checkers) {
+                service.releaseChecker(checker);
+            }
+        }
+    }
+
+    private boolean isStopped() {
+        return failed || scan.infos.isCancelled();
+    }
+
+    private void submit(String path) {
+        pending.incrementAndGet();
+        tasks.offerFirst(path);
+    }
+
+    private class Worker implements Callable<TypeCleanupInfo> {
+        private final ResourceResolver walker;
+        private final ResourceResolver checker;
+        private ScanContext context;
+
+        Worker(ResourceResolver walker, ResourceResolver checker) {
+            this.walker = walker;
+            this.checker = checker;
+        }
+
+        @Override
+        public TypeCleanupInfo call() throws Exception {
+            context = scan.fork(new TypeCleanupInfo(), checker);
+            try {
+                while (!isStopped()) {
+                    String path = tasks.pollFirst(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (path == null) {
+                        if (pending.get() == 0) {
+                            break;
+                        }
+                    } else {
+                        try {
+                            Resource resource = walker.getResource(path);
+                            if (resource != null) {
+                                walk(resource);
+                            }
+                        } finally {
+                            pending.decrementAndGet();
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                failed = true;
+                throw e;
+            } finally {
+                context.flushStats();
+            }
+            return context.infos;
+        }
+
+        /**
+         * walks a subtree as the sequential traversal does, but hands descendants over to other
+         * workers when they are starving
+         * @param subtree
+         */
+        private void walk(Resource subtree) {
+            ResourceCursor cursor = new ResourceCursor(subtree, null);
+            boolean first = true;
+            for (Resource resource = context.next(cursor); resource != null && !isStopped(); resource = context.next(cursor)) {
+                if (!first && tasks.size() < parallelism) {
+                    submit(resource.getPath());
+                    cursor.skipChildren();
+                } else {
+                    context.infos.traverse();
+                    if (service.isObsolete(context, resource)) {
+                        scan.obsolete(resource.getPath(), resource.getResourceType());
+                        cursor.skipChildren();
+                    } else if (context.prunes(resource)) {
+                        cursor.skipChildren();
+                    }
+                    if (context.infos.getNbResourceParsed() >= PROGRESS_INTERVAL) {
+                        scan.infos.merge(context.infos);
+                        context.flushStats();
+                        context = scan.fork(new TypeCleanupInfo(), checker);
+                    }
+                }
+                first = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Removal of obsolete paths by several workers, each with its own session and batched commits.
+ * Paths are first reduced to the topmost ones, so that no two workers ever touch an ancestor and
+ * its descendant, and siblings go to the same partition so that no two sessions change the same
+ * parent. A failing partition stops, keeping what it committed, without affecting the others, and is
+ * reported as failed.
+ */
+class PartitionedCleanup {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final TypeCleanupServiceImpl service;
+
+    private final ExecutorService executor;
+
+    private final int parallelism;
+
+    /**
+     * @param service service removals are done with
+     * @param executor pool partitions run in, owned by the service
+     * @param parallelism maximum number of partitions
+     */
+    PartitionedCleanup(TypeCleanupServiceImpl service, ExecutorService executor, int parallelism) {
+        this.service = service;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * removes obsolete paths of infos, reporting commits and partitions outcome in it
+     * @param resolver resolver whose session each partition's session is cloned from
+     * @param infos
+     * @return number of partitions that failed, whose further paths have not been removed
+     */
+    int run(ResourceResolver resolver, TypeCleanupInfo infos) {
+        List<List<String>> partitions = partition(infos.getPaths(), parallelism);
+        logger.info("removing obsolete resources in {} partitions", partitions.size());
+        int failed = 0;
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        try {
+            List<TypeCleanupInfo> results = new ArrayList<TypeCleanupInfo>();
+            List<String> errors = new ArrayList<String>();
+            for (List<String> partition : partitions) {
+                TypeCleanupInfo result = new TypeCleanupInfo();
+                results.add(result);
+                try {
+                    // sessions are cloned here, the resolver not being thread safe
+                    workers.add(executor.submit(new Worker(resolver.clone(null), partition, result)));
+                    errors.add(null);
+                } catch (LoginException e) {
+                    logger.error("unable to open a session for partition {}", results.size() - 1, e);
+                    workers.add(null);
+                    errors.add("unable to open a session: " + e.getMessage());
+                }
+            }
+            for (int i = 0; i < partitions.size(); i++) {
+                String error = errors.get(i);
+                try {
+                    if (workers.get(i) != null) {
+                        workers.get(i).get();
+                    }
+                } catch (ExecutionException e) {
+                    logger.error("partition {} failed", i, e.getCause());
+                    error = e.getCause().getMessage() != null ? e.getCause().getMessage() : e.getCause().getClass().getName();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = "interrupted";
+                }
+                if (error != null) {
+                    failed++;
+                }
+                infos.merge(results.get(i));
+                infos.addPartition(partitions.get(i).size(), results.get(i).getNbRemoved(), error);
+            }
+        } finally {
+            // the pool being shared, only workers of this removal are stopped if it is interrupted
+            for (Future<?> worker : workers) {
+                if (worker != null) {
+                    worker.cancel(true);
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * splits paths in at most count partitions of topmost paths, siblings being in the same one
+     * @param paths
+     * @param count
+     * @return non empty partitions, biggest first
+     */
+    static List<List<String>> partition(List<String> paths, int count) {
+        TopmostPaths topmost = new TopmostPaths();
+        for (String path : paths) {
+            topmost.add(path);
+        }
+        Map<String, List<String>> siblings = new LinkedHashMap<String, List<String>>();
+        for (String path : topmost.paths()) {
+            String parent = path.substring(0, Math.max(1, path.lastIndexOf('/')));
+            List<String> group = siblings.get(parent);
+            if (group == null) {
+                group = new ArrayList<String>();
+                siblings.put(parent, group);
+            }
+            group.add(path);
+        }
+        List<List<String>> groups = new ArrayList<List<String>>(siblings.values());
+        Collections.sort(groups, BY_SIZE_DESCENDING);
+        List<List<String>> partitions = new ArrayList<List<String>>();
+        for (List<String> group : groups) {
+            if (partitions.size() < count) {
+                partitions.add(new ArrayList<String>(group));
+            } else {
+                Collections.min(partitions, BY_SIZE_ASCENDING).addAll(group);
+            }
+        }
+        Collections.sort(partitions, BY_SIZE_DESCENDING);
+        return partitions;
+    }
+
+    private static final Comparator<List<String>> BY_SIZE_ASCENDING = new Comparator<List<String>>() {
+        @Override
+        public int compare(List<String> list1, List<String> list2) {
+            return list1.size() < list2.size() ? -1 : list1.size() == list2.size() ? 0 : 1;
+        }
+    };
+
+    private static final Comparator<List<String>> BY_SIZE_DESCENDING = Collections.reverseOrder(BY_SIZE_ASCENDING);
+
+    /**
+     * removes a partition with its own session, closing it once done
+     */
+    private class Worker implements Callable<Void> {
+        private final ResourceResolver resolver;
+        private final List<String> paths;
+        private final TypeCleanupInfo result;
+
+        Worker(ResourceResolver resolver, List<String> paths, TypeCleanupInfo result) {
+            this.resolver = resolver;
+            this.paths = paths;
+            this.result = result;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            try {
+                BatchRemover remover = service.newBatchRemover(resolver, result);
+                for (String path : paths) {
+                    remover.remove(path);
+                }
+                remover.commit();
+            } finally {
+                resolver.close();
+            }
+            return null;
+        }
+    }
+}
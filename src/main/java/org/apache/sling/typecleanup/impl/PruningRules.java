@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable rules of subtrees a traversal doesn't descend in, because they can't hold resources worth
+ * checking (renditions, version storage, access control lists...). A resource matches if its path
+ * matches one of the path globs, its name one of the names, its primary type one of the node types,
+ * or if it is at the maximum depth. Rules are checked cheapest first, the primary type being read
+ * only if node types are configured.
+ */
+class PruningRules {
+
+    static final PruningRules NONE = new PruningRules(Collections.<String>emptyList(), Collections.<String>emptyList(),
+            Collections.<String>emptyList(), 0);
+
+    private static final String PN_PRIMARY_TYPE = "jcr:primaryType";
+
+    /**
+     * union of path globs, null if there is none
+     */
+    private final Pattern paths;
+
+    private final Set<String> names;
+
+    private final Set<String> nodeTypes;
+
+    private final int maxDepth;
+
+    /**
+     * @param paths path globs, <code>*</code> matching any characters but <code>/</code>, <code>**</code> any characters,
+     *              <code>**&#47;</code> any number of path segments, and <code>?</code> one character but <code>/</code>
+     * @param names node names
+     * @param nodeTypes primary node types
+     * @param maxDepth depth of the path of resources whose children are not traversed, e.g. 2 for /content/site, 0 for none
+     */
+    PruningRules(List<String> paths, List<String> names, List<String> nodeTypes, int maxDepth) {
+        this.paths = paths.isEmpty() ? null : compile(paths);
+        this.names = new HashSet<String>(names);
+        this.nodeTypes = new HashSet<String>(nodeTypes);
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @param globs
+     * @return pattern matching any of the globs
+     */
+    static Pattern compile(List<String> globs) {
+        StringBuilder regex = new StringBuilder();
+        for (String glob : globs) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append("(?:");
+            int literal = 0;
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' || c == '?') {
+                    if (i > literal) {
+                        regex.append(Pattern.quote(glob.substring(literal, i)));
+                    }
+                    if (c == '?') {
+                        regex.append("[^/]");
+                    } else if (i + 2 < glob.length() && glob.charAt(i + 1) == '*' && glob.charAt(i + 2) == '/') {
+                        regex.append("(?:.*/)?");
+                        i += 2;
+                    } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    literal = i + 1;
+                }
+            }
+            if (glob.length() > literal) {
+                regex.append(Pattern.quote(glob.substring(literal)));
+            }
+            regex.append(')');
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @param resource
+     * @return true if the resource's children should not be traversed
+     */
+    boolean prunes(Resource resource) {
+        if (prunes(resource.getPath())) {
+            return true;
+        }
+        if (nodeTypes.isEmpty()) {
+            return false;
+        }
+        ValueMap properties = ResourceUtil.getValueMap(resource);
+        return nodeTypes.contains(properties.get(PN_PRIMARY_TYPE, String.class));
+    }
+
+    /**
+     * @param node
+     * @return true if the node's children should not be traversed
+     * @throws RepositoryException
+     */
+    boolean prunes(Node node) throws RepositoryException {
+        return prunes(node.getPath()) || !nodeTypes.isEmpty() && nodeTypes.contains(node.getPrimaryNodeType().getName());
+    }
+
+    /**
+     * @param path
+     * @return true if the path matches depth, name or path rules
+     */
+    boolean prunes(String path) {
+        if (maxDepth > 0 && depthOf(path) >= maxDepth) {
+            return true;
+        }
+        if (!names.isEmpty() && names.contains(path.substring(path.lastIndexOf('/') + 1))) {
+            return true;
+        }
+        return paths != null && paths.matcher(path).matches();
+    }
+
+    /**
+     * @return description of the rules, equal for equal rules
+     */
+    String describe() {
+        return (paths != null ? paths.pattern() : "") + "|" + new TreeSet<String>(names) + "|" + new TreeSet<String>(nodeTypes) + "|" + maxDepth;
+    }
+
+    /**
+     * @return true if no resource is pruned
+     */
+    boolean isEmpty() {
+        return paths == null && names.isEmpty() && nodeTypes.isEmpty() && maxDepth <= 0;
+    }
+
+    private static int depthOf(String path) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/' && i + 1 < path.length()) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+}
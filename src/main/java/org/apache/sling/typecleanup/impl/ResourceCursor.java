@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+import java.util.Iterator;
+
+/**
+ * cursor over a resource tree, resolving resources with the root's resolver
+ */
+class ResourceCursor extends TreeCursor<Resource> {
+
+    private final ResourceResolver resolver;
+
+    ResourceCursor(Resource root, String position) {
+        super(root, position);
+        this.resolver = root.getResourceResolver();
+    }
+
+    @Override
+    protected Iterator<Resource> children(Resource resource) {
+        return resource.listChildren();
+    }
+
+    @Override
+    protected String pathOf(Resource resource) {
+        return resource.getPath();
+    }
+
+    @Override
+    protected Resource resolve(String path) {
+        return resolver.getResource(path);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * bounded, least recently used, cache of resource type existence keyed by resource type.
+ * Each access carries the current type definitions generation: as soon as it differs from
+ * the one the cache has been filled with, all entries are dropped.
+ */
+class ResourceTypeCache {
+
+    private final Map<String, Boolean> entries;
+
+    private long generation;
+
+    ResourceTypeCache(final int maxSize, final long generation) {
+        this.generation = generation;
+        this.entries = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * drops entries if type definitions changed since they have been cached
+     * @param generation current type definitions generation
+     */
+    private void sync(long generation) {
+        if (generation > this.generation) {
+            entries.clear();
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * @param resourceType
+     * @param generation current type definitions generation
+     * @return cached existence of the resource type, null if unknown
+     */
+    synchronized Boolean get(String resourceType, long generation) {
+        sync(generation);
+        return entries.get(resourceType);
+    }
+
+    /**
+     * caches existence of a resource type, unless type definitions changed while it was computed
+     * @param resourceType
+     * @param exists
+     * @param generation type definitions generation the existence has been computed with
+     */
+    synchronized void put(String resourceType, boolean exists, long generation) {
+        sync(generation);
+        if (generation == this.generation) {
+            entries.put(resourceType, exists);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
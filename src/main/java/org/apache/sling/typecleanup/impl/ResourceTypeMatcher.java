@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable matcher of resource types against inclusion and exclusion prefixes.
+ * Prefixes are compiled in a character trie, so that a resource type gets classified
+ * in one walk over its characters, without any allocation, whatever the number of prefixes.
+ */
+class ResourceTypeMatcher {
+
+    private static final byte INCLUSION = 1;
+
+    private static final byte EXCLUSION = 2;
+
+    static final ResourceTypeMatcher EMPTY = new ResourceTypeMatcher(Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    /**
+     * trie node, children being sorted by character
+     */
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        byte flags;
+
+        Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node addChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insertion = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertion);
+            System.arraycopy(children, 0, newChildren, 0, insertion);
+            System.arraycopy(keys, insertion, newKeys, insertion + 1, keys.length - insertion);
+            System.arraycopy(children, insertion, newChildren, insertion + 1, children.length - insertion);
+            Node child = new Node();
+            newKeys[insertion] = c;
+            newChildren[insertion] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+
+    private final List<String> inclusions;
+
+    private final List<String> exclusions;
+
+    /**
+     * @param inclusions prefixes of resource types to consider
+     * @param exclusions prefixes of resource types not to consider, among inclusions
+     */
+    ResourceTypeMatcher(List<String> inclusions, List<String> exclusions) {
+        this.inclusions = Collections.unmodifiableList(new ArrayList<String>(inclusions));
+        this.exclusions = Collections.unmodifiableList(new ArrayList<String>(exclusions));
+        for (String inclusion : inclusions) {
+            add(inclusion, INCLUSION);
+        }
+        for (String exclusion : exclusions) {
+            add(exclusion, EXCLUSION);
+        }
+    }
+
+    private void add(String prefix, byte flag) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.addChild(prefix.charAt(i));
+        }
+        node.flags |= flag;
+    }
+
+    /**
+     * @param resourceType
+     * @return true if the resource type starts with one of the inclusions, and none of the exclusions
+     */
+    boolean isIncluded(String resourceType) {
+        if (resourceType == null) {
+            return false;
+        }
+        boolean included = false;
+        Node node = root;
+        for (int i = 0; i < resourceType.length(); i++) {
+            node = node.child(resourceType.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if ((node.flags & EXCLUSION) != 0) {
+                return false;
+            }
+            if ((node.flags & INCLUSION) != 0) {
+                included = true;
+            }
+        }
+        return included;
+    }
+
+    List<String> getInclusions() {
+        return inclusions;
+    }
+
+    List<String> getExclusions() {
+        return exclusions;
+    }
+}
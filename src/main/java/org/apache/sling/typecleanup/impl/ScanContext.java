@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.apache.sling.typecleanup.TypeCleanupListener;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import java.util.Iterator;
+
+/**
+ * state of one scan: where results go, the resolver resource types are checked with,
+ * the type existence cache all checks of that scan share, the inclusion/exclusion
+ * matcher and pruning rules the scan started with, the throttle resources are visited with,
+ * the scan's statistics, and where obsolete resources are recorded besides results if anywhere
+ */
+class ScanContext {
+
+    final TypeCleanupInfo infos;
+
+    final ResourceResolver checker;
+
+    final ResourceTypeCache typeCache;
+
+    final ResourceTypeMatcher matcher;
+
+    final PruningRules pruning;
+
+    final Throttle throttle;
+
+    final ScanStats stats;
+
+    final TypeCleanupListener recorder;
+
+    ScanContext(TypeCleanupInfo infos, ResourceResolver checker, ResourceTypeCache typeCache, ResourceTypeMatcher matcher,
+                PruningRules pruning, Throttle throttle, TypeCleanupStats stats) {
+        this(infos, checker, typeCache, matcher, pruning, throttle, new ScanStats(stats), null);
+    }
+
+    private ScanContext(TypeCleanupInfo infos, ResourceResolver checker, ResourceTypeCache typeCache, ResourceTypeMatcher matcher,
+                PruningRules pruning, Throttle throttle, ScanStats stats, TypeCleanupListener recorder) {
+        this.infos = infos;
+        this.checker = checker;
+        this.typeCache = typeCache;
+        this.matcher = matcher;
+        this.pruning = pruning;
+        this.throttle = throttle;
+        this.stats = stats;
+        this.recorder = recorder;
+    }
+
+    /**
+     * @param infos wrapper the new context collects in
+     * @param checker resolver the new context checks resource types with
+     * @return context of the same scan, sharing its type cache, matcher, pruning rules and throttle, with
+     * statistics of its own that have to be flushed by the thread using it
+     */
+    ScanContext fork(TypeCleanupInfo infos, ResourceResolver checker) {
+        return new ScanContext(infos, checker, typeCache, matcher, pruning, throttle, new ScanStats(stats.getGlobal()), recorder);
+    }
+
+    /**
+     * @param recorder listener obsolete resources are recorded with, besides being added to results
+     * @return same scan, recording obsolete resources it finds
+     */
+    ScanContext recording(TypeCleanupListener recorder) {
+        return new ScanContext(infos, checker, typeCache, matcher, pruning, throttle, stats, recorder);
+    }
+
+    /**
+     * adds an obsolete resource to the results, and records it if the scan records them
+     * @param path
+     * @param resourceType
+     */
+    void obsolete(String path, String resourceType) {
+        infos.add(path, resourceType);
+        if (recorder != null) {
+            recorder.obsolete(path, resourceType);
+        }
+    }
+
+    /**
+     * adds statistics of the scan gathered so far to the service's ones, to be called once the scan is done
+     */
+    void flushStats() {
+        stats.flush();
+    }
+
+    /**
+     * tells whether the children of a resource that is not obsolete should be traversed, counting it if not
+     * @param resource
+     * @return true if the resource's subtree is pruned
+     */
+    boolean prunes(Resource resource) {
+        if (pruning.prunes(resource)) {
+            infos.prune();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * same as {@link #prunes(Resource)} for a node
+     * @param node
+     * @return true if the node's subtree is pruned
+     * @throws RepositoryException
+     */
+    boolean prunes(Node node) throws RepositoryException {
+        if (pruning.prunes(node)) {
+            infos.prune();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * visits the next item of a traversal, resource or node, once the throttle lets it, reporting how long it took to the throttle
+     * @param cursor
+     * @return next item, null once the traversal is complete
+     */
+    <T> T next(TreeCursor<T> cursor) {
+        throttle.acquire(1);
+        long start = System.nanoTime();
+        T item = cursor.next();
+        throttle.record(System.nanoTime() - start);
+        if (item != null) {
+            stats.visited();
+        }
+        return item;
+    }
+
+    /**
+     * visits the next resource of query results, once the throttle lets it, reporting how long it took to the throttle
+     * @param resources
+     * @return next resource, null if there is none
+     */
+    Resource next(Iterator<Resource> resources) {
+        throttle.acquire(1);
+        long start = System.nanoTime();
+        Resource resource = resources.hasNext() ? resources.next() : null;
+        throttle.record(System.nanoTime() - start);
+        if (resource != null) {
+            stats.visited();
+        }
+        return resource;
+    }
+}
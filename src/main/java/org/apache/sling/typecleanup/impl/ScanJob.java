@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.apache.sling.typecleanup.TypeCleanupJob;
+import org.apache.sling.typecleanup.TypeCleanupOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * scan running in the service's job pool, owning the resolver it reads the tree with
+ */
+class ScanJob implements TypeCleanupJob, Runnable {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final String id = UUID.randomUUID().toString();
+
+    private final TypeCleanupServiceImpl service;
+
+    private final ResourceResolver resolver;
+
+    private final String path;
+
+    private final TypeCleanupOptions options;
+
+    private final TypeCleanupInfo infos;
+
+    /**
+     * report the scan writes obsolete paths to, null if there is none
+     */
+    private final ScanReport report;
+
+    /**
+     * number of resources the last complete scan of the same path traversed, 0 if unknown
+     */
+    private final long expectedResources;
+
+    private volatile State state = State.QUEUED;
+
+    private volatile long startTime;
+
+    private volatile long endTime;
+
+    private volatile String error;
+
+    ScanJob(TypeCleanupServiceImpl service, ResourceResolver resolver, String path, TypeCleanupOptions options, long expectedResources)
+            throws IOException {
+        this.service = service;
+        this.resolver = resolver;
+        this.path = path;
+        this.options = options;
+        this.report = service.newReport(options, path);
+        this.infos = service.newCleanupInfo(options, report);
+        this.expectedResources = expectedResources;
+    }
+
+    @Override
+    public void run() {
+        boolean complete = false;
+        try {
+            if (!infos.isCancelled()) {
+                state = State.RUNNING;
+                startTime = System.currentTimeMillis();
+                Resource root = resolver.getResource(path);
+                if (root == null) {
+                    error = path + " does not exist";
+                } else {
+                    service.collect(infos, root, options);
+                    complete = !infos.isCancelled();
+                }
+            }
+        } catch (Exception e) {
+            logger.error("scan job {} failed", id, e);
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        } finally {
+            endTime = System.currentTimeMillis();
+            resolver.close();
+            service.completeReport(infos, report, complete);
+            state = infos.isCancelled() ? State.CANCELLED : error != null ? State.FAILED : State.SUCCEEDED;
+        }
+    }
+
+    /**
+     * asks the scan to stop, a queued job won't even start
+     * @return true if the job wasn't finished
+     */
+    boolean cancel() {
+        infos.cancel();
+        return !state.isFinished();
+    }
+
+    /**
+     * releases the result of a finished job that is not retained anymore, or of a job that won't run
+     */
+    void dispose() {
+        infos.dispose();
+        if (report != null) {
+            report.abort();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public long getNbResourceParsed() {
+        return infos.getNbResourceParsed();
+    }
+
+    @Override
+    public long getNbObsolete() {
+        return infos.getNbObsolete();
+    }
+
+    @Override
+    public double getRate() {
+        long start = startTime;
+        if (start == 0) {
+            return 0;
+        }
+        long end = endTime > 0 ? endTime : System.currentTimeMillis();
+        return end > start ? getNbResourceParsed() * 1000d / (end - start) : 0;
+    }
+
+    @Override
+    public long getEta() {
+        if (state.isFinished()) {
+            return 0;
+        }
+        double rate = getRate();
+        long remaining = expectedResources - getNbResourceParsed();
+        if (expectedResources == 0 || rate == 0 || remaining < 0) {
+            return -1;
+        }
+        return (long) (remaining * 1000 / rate);
+    }
+
+    @Override
+    public TypeCleanupInfo getResult() {
+        return state.isFinished() ? infos : null;
+    }
+
+    @Override
+    public String getError() {
+        return error;
+    }
+}
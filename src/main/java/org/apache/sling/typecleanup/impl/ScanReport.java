@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.typecleanup.TypeCleanupListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed report of the obsolete resources a scan finds, one path and its missing type per line,
+ * written as they are found and forwarded to another listener if any. A report is a file named after
+ * its id, that only gets readable once the scan is complete, so that a cleanup never goes through a
+ * partial one. The same format records results of incremental scans (see {@link ScanWatermark}).
+ */
+class ScanReport implements TypeCleanupListener {
+    private static final Logger logger = LoggerFactory.getLogger(ScanReport.class);
+
+    static final String EXTENSION = ".txt.gz";
+
+    static final String HEADER = "#";
+
+    static final char SEPARATOR = '\t';
+
+    private static final String TEMPORARY = ".tmp";
+
+    private static final Pattern ID = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    private final File file;
+
+    private final File temporary;
+
+    private final TypeCleanupListener listener;
+
+    private BufferedWriter writer;
+
+    private boolean failed;
+
+    /**
+     * starts a report, older ones than the given number of retained reports being deleted
+     * @param directory directory reports are kept in
+     * @param description first line of the report, e.g. what has been scanned
+     * @param listener listener obsolete paths are forwarded to, null if none
+     * @param maxReports number of reports kept in the directory
+     * @throws IOException
+     */
+    ScanReport(File directory, String description, TypeCleanupListener listener, int maxReports) throws IOException {
+        this(file(prepare(directory, maxReports - 1), UUID.randomUUID().toString()), description, listener);
+    }
+
+    /**
+     * starts a report in a given file, replacing it once complete
+     * @param file
+     * @param description first line of the report
+     * @param listener listener obsolete paths are forwarded to, null if none
+     * @throws IOException
+     */
+    ScanReport(File file, String description, TypeCleanupListener listener) throws IOException {
+        this.file = file;
+        this.temporary = new File(file.getPath() + TEMPORARY);
+        this.listener = listener;
+        writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temporary)), "UTF-8"));
+        writer.write(HEADER + description);
+        writer.newLine();
+    }
+
+    /**
+     * @param directory
+     * @param maxReports
+     * @return directory, created if needed, and pruned so that it has no more than a given number of reports
+     * @throws IOException
+     */
+    private static File prepare(File directory, int maxReports) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create reports directory " + directory);
+        }
+        prune(directory, maxReports);
+        return directory;
+    }
+
+    String getId() {
+        return file.getName().substring(0, file.getName().length() - EXTENSION.length());
+    }
+
+    @Override
+    public synchronized void obsolete(String path, String resourceType) {
+        if (writer != null && !failed) {
+            try {
+                writer.write(path + SEPARATOR + (resourceType != null ? resourceType : ""));
+                writer.newLine();
+            } catch (IOException e) {
+                logger.error("unable to write report {}, it won't be available", file, e);
+                failed = true;
+            }
+        }
+        if (listener != null) {
+            listener.obsolete(path, resourceType);
+        }
+    }
+
+    /**
+     * completes the report, making it readable unless writing it failed
+     */
+    synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.error("unable to complete report {}, it won't be available", file, e);
+            failed = true;
+        } finally {
+            writer = null;
+        }
+        if (failed || !(temporary.renameTo(file) || (file.delete() && temporary.renameTo(file)))) {
+            temporary.delete();
+        }
+    }
+
+    /**
+     * drops the report, the file it replaces (if any) being left as it is
+     */
+    synchronized void abort() {
+        if (writer != null) {
+            IOUtils.closeQuietly(writer);
+            writer = null;
+            temporary.delete();
+        }
+    }
+
+    /**
+     * @param directory
+     * @param id
+     * @return file of the report with that id
+     * @throws IllegalArgumentException if the id is not one of a report
+     */
+    static File file(File directory, String id) {
+        if (id == null || !ID.matcher(id).matches()) {
+            throw new IllegalArgumentException("invalid report id " + id);
+        }
+        return new File(directory, id + EXTENSION);
+    }
+
+    /**
+     * deletes the oldest complete reports so that there are no more than a given number of them, reports
+     * being written being left alone
+     * @param directory
+     * @param maxReports
+     */
+    static void prune(File directory, int maxReports) {
+        File[] reports = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return !file.getName().endsWith(TEMPORARY);
+            }
+        });
+        if (reports == null || reports.length <= maxReports) {
+            return;
+        }
+        Arrays.sort(reports, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long modified1 = file1.lastModified();
+                long modified2 = file2.lastModified();
+                return modified1 < modified2 ? -1 : modified1 == modified2 ? 0 : 1;
+            }
+        });
+        for (int i = 0; i < reports.length - Math.max(0, maxReports); i++) {
+            if (!reports[i].delete()) {
+                logger.warn("unable to delete report {}", reports[i]);
+            }
+        }
+    }
+
+    /**
+     * sequential reader of a complete report
+     */
+    static class Reader {
+        private final BufferedReader reader;
+
+        private final String description;
+
+        /**
+         * @param directory
+         * @param id
+         * @throws FileNotFoundException if there is no complete report with that id
+         * @throws IOException
+         */
+        Reader(File directory, String id) throws IOException {
+            this(file(directory, id));
+        }
+
+        /**
+         * @param file
+         * @throws FileNotFoundException if there is no complete report in that file
+         * @throws IOException
+         */
+        Reader(File file) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+            String header = reader.readLine();
+            description = header != null && header.startsWith(HEADER) ? header.substring(HEADER.length()) : "";
+        }
+
+        /**
+         * @return first line of the report
+         */
+        String getDescription() {
+            return description;
+        }
+
+        /**
+         * @return next path of the report and its missing type, empty if unknown, null at the end of the report
+         * @throws IOException
+         */
+        String[] next() throws IOException {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                int separator = line.indexOf(SEPARATOR);
+                if (!line.startsWith(HEADER) && separator > 0) {
+                    return new String[] {line.substring(0, separator), line.substring(separator + 1)};
+                }
+            }
+            return null;
+        }
+
+        void close() {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Statistics of one scan, or of one worker of a parallel scan, counted in plain fields by the thread
+ * running it, and added to the service's statistics every {@link #FLUSH_INTERVAL} updates and when
+ * the scan ends, so that visits don't contend on shared counters. Inclusion checks are timed
+ * one in {@link #INCLUSION_SAMPLING}.
+ */
+class ScanStats {
+
+    static final int FLUSH_INTERVAL = 4096;
+
+    static final int INCLUSION_SAMPLING = 64;
+
+    private final TypeCleanupStats global;
+
+    private long visited;
+
+    private long typeCacheHits;
+
+    private long typeCacheMisses;
+
+    private long inclusionChecks;
+
+    private final Map<String, long[]> obsoleteHits = new HashMap<String, long[]>();
+
+    private int updates;
+
+    /**
+     * @param global statistics of the service, counts are added to
+     */
+    ScanStats(TypeCleanupStats global) {
+        this.global = global;
+    }
+
+    TypeCleanupStats getGlobal() {
+        return global;
+    }
+
+    void visited() {
+        visited++;
+        updated();
+    }
+
+    void typeCacheHit() {
+        typeCacheHits++;
+        updated();
+    }
+
+    void typeCacheMiss() {
+        typeCacheMisses++;
+        updated();
+    }
+
+    /**
+     * @param latency time the repository lookup of a type took, in ns
+     */
+    void typeLookup(long latency) {
+        global.typeLookup(latency);
+    }
+
+    /**
+     * counts an inclusion check
+     * @return true if that check should be timed, and its time reported with {@link #inclusionCheck(long)}
+     */
+    boolean sampleInclusionCheck() {
+        inclusionChecks++;
+        updated();
+        return inclusionChecks % INCLUSION_SAMPLING == 1;
+    }
+
+    /**
+     * @param time time a sampled inclusion check took, in ns
+     */
+    void inclusionCheck(long time) {
+        global.inclusionCheck(time);
+    }
+
+    void obsolete(String resourceType) {
+        long[] hits = obsoleteHits.get(resourceType);
+        if (hits == null) {
+            hits = new long[1];
+            obsoleteHits.put(resourceType, hits);
+        }
+        hits[0]++;
+        updated();
+    }
+
+    private void updated() {
+        if (++updates >= FLUSH_INTERVAL) {
+            flush();
+        }
+    }
+
+    /**
+     * adds counts gathered since last time to the service's statistics
+     */
+    void flush() {
+        global.add(visited, typeCacheHits, typeCacheMisses, inclusionChecks, obsoleteHits);
+        visited = 0;
+        typeCacheHits = 0;
+        typeCacheMisses = 0;
+        inclusionChecks = 0;
+        obsoleteHits.clear();
+        updates = 0;
+    }
+}
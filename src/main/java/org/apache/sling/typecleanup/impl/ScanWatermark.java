@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Last complete incremental scan of a root: when it started, the type definitions it checked against,
+ * a fingerprint of the inclusion, exclusion and pruning rules it applied, and the obsolete resources it
+ * found, kept as a report in a file named after the root. A watermark is only usable by a scan of the
+ * same root, against the same type definitions, with the same rules.
+ */
+class ScanWatermark {
+
+    private final ScanReport.Reader reader;
+
+    private final long time;
+
+    private ScanWatermark(ScanReport.Reader reader, long time) {
+        this.reader = reader;
+        this.time = time;
+    }
+
+    /**
+     * @param directory directory watermarks are kept in
+     * @param root
+     * @param types current generation of type definitions
+     * @param rules fingerprint of current rules, see {@link #fingerprint(ResourceTypeMatcher, PruningRules)}
+     * @return last watermark of the root, null if there is none, or if type definitions or rules might have changed since
+     * @throws IOException
+     */
+    static ScanWatermark open(File directory, String root, String types, String rules) throws IOException {
+        File file = file(directory, root);
+        if (!file.isFile()) {
+            return null;
+        }
+        ScanReport.Reader reader = new ScanReport.Reader(file);
+        String[] description = reader.getDescription().split(String.valueOf(ScanReport.SEPARATOR));
+        if (description.length == 4 && description[0].equals(root) && description[2].equals(types) && description[3].equals(rules)) {
+            try {
+                return new ScanWatermark(reader, Long.parseLong(description[1]));
+            } catch (NumberFormatException e) {
+                // not a watermark
+            }
+        }
+        reader.close();
+        return null;
+    }
+
+    /**
+     * @param root
+     * @param time time the scan started at
+     * @param types generation of type definitions the scan checks against
+     * @param rules fingerprint of the rules the scan applies
+     * @return first line of the watermark a scan writes
+     */
+    static String describe(String root, long time, String types, String rules) {
+        return root + ScanReport.SEPARATOR + time + ScanReport.SEPARATOR + types + ScanReport.SEPARATOR + rules;
+    }
+
+    /**
+     * @param matcher
+     * @param pruning
+     * @return digest of inclusions, exclusions and pruning rules, that only differs if they do
+     */
+    static String fingerprint(ResourceTypeMatcher matcher, PruningRules pruning) {
+        return digest(matcher.getInclusions() + "|" + matcher.getExclusions() + "|" + pruning.describe());
+    }
+
+    /**
+     * @param directory
+     * @param root
+     * @return file the watermark of a root is kept in, named after a digest of its path
+     */
+    static File file(File directory, String root) {
+        return new File(directory, digest(root) + ScanReport.EXTENSION);
+    }
+
+    /**
+     * @param value
+     * @return hexadecimal SHA-1 digest of the value
+     */
+    private static String digest(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return time the scan started at, changes marked after it having not been seen by the scan
+     */
+    long getTime() {
+        return time;
+    }
+
+    /**
+     * @return next obsolete path the scan found, and its missing type, null once they have all been read
+     * @throws IOException
+     */
+    String[] next() throws IOException {
+        return reader.next();
+    }
+
+    void close() {
+        reader.close();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.apache.sling.typecleanup.TypeCleanupListener;
+import org.apache.sling.typecleanup.TypeCleanupOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Cleanup of configured roots run by the scheduler in time slices: each run goes on from the position
+ * the previous one stopped at, scanning a chunk of resources at a time, removing obsolete ones found in
+ * it, then persisting the position once removals are committed, until its maximum duration is over.
+ * A chunk some removals of which failed (e.g. a partition of a parallel removal) stops the run without
+ * persisting the position past it, so that the next run scans it again.
+ * The position survives restarts, a crash redoing at most one chunk. Once all roots have been cleaned
+ * up, the next run starts over.
+ */
+class ScheduledCleanup implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(ScheduledCleanup.class);
+
+    static final String KEY_ROOTS = "roots";
+
+    static final String KEY_ROOT = "root";
+
+    static final String KEY_POSITION = "position";
+
+    private static final String TEMPORARY = ".tmp";
+
+    private final TypeCleanupServiceImpl service;
+
+    private final List<String> roots;
+
+    private final long maxDuration;
+
+    private final int chunkSize;
+
+    private final File stateFile;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param service
+     * @param roots non overlapping roots, cleaned up in that order
+     * @param maxDuration duration, in ms, after which a run stops once its current chunk is done
+     * @param chunkSize number of resources scanned before obsolete ones are removed and the position persisted
+     * @param stateFile file the position is persisted in
+     */
+    ScheduledCleanup(TypeCleanupServiceImpl service, List<String> roots, long maxDuration, int chunkSize, File stateFile) {
+        this.service = service;
+        this.roots = roots;
+        this.maxDuration = maxDuration;
+        this.chunkSize = chunkSize;
+        this.stateFile = stateFile;
+    }
+
+    @Override
+    public void run() {
+        ResourceResolver resolver = null;
+        try {
+            resolver = service.factory.getAdministrativeResourceResolver(null);
+            run(resolver);
+        } catch (Exception e) {
+            logger.error("scheduled cleanup failed, next run will go on from the last committed position", e);
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * runs a slice, with at least one chunk
+     * @param resolver resolver resources are read and removed with
+     * @throws Exception
+     */
+    void run(ResourceResolver resolver) throws Exception {
+        if (!service.isConfigured() || roots.isEmpty()) {
+            logger.info("not configured, skipping scheduled cleanup");
+            return;
+        }
+        long deadline = System.currentTimeMillis() + maxDuration;
+        Properties state = load();
+        int rootIndex = Math.max(0, roots.indexOf(state.getProperty(KEY_ROOT)));
+        String position = state.getProperty(KEY_POSITION);
+        long nbResourceParsed = 0;
+        long nbRemoved = 0;
+        ResourceResolver checker = service.acquireChecker();
+        boolean failed = true;
+        service.stats.scanStarted();
+        try {
+            do {
+                Resource root = resolver.getResource(roots.get(rootIndex));
+                String next = null;
+                if (root != null) {
+                    TypeCleanupOptions options = new TypeCleanupOptions();
+                    options.setResumePath(position);
+                    options.setMaxResources(chunkSize);
+                    TypeCleanupInfo infos = service.newCleanupInfo((TypeCleanupListener) null);
+                    ScanContext scan = service.newScanContext(infos, checker);
+                    try {
+                        service.traverse(scan, root, options, null);
+                        if (infos.getNbObsolete() > 0) {
+                            service.cleanup(resolver, infos);
+                        }
+                        nbResourceParsed += infos.getNbResourceParsed();
+                        nbRemoved += infos.getNbRemoved();
+                        if (infos.getNbFailedPartitions() > 0) {
+                            // position is kept, for the chunk to be scanned again next run
+                            throw new RepositoryException(infos.getNbFailedPartitions() + " partitions failed removing obsolete resources of "
+                                    + roots.get(rootIndex) + (position != null ? " from " + position : ""));
+                        }
+                        next = infos.getResumePath();
+                    } finally {
+                        scan.flushStats();
+                        infos.dispose();
+                    }
+                }
+                if (next != null) {
+                    position = next;
+                } else if (++rootIndex < roots.size()) {
+                    position = null;
+                } else {
+                    logger.info("scheduled cleanup of {} complete, {} resources traversed, {} nodes removed in last run",
+                            new Object[] {roots, nbResourceParsed, nbRemoved});
+                    reset();
+                    failed = false;
+                    return;
+                }
+                save(roots.get(rootIndex), position);
+            } while (System.currentTimeMillis() < deadline && !stopped);
+            failed = false;
+        } finally {
+            service.stats.scanFinished(failed);
+            service.releaseChecker(checker);
+        }
+        logger.info("scheduled cleanup paused at {}, {} resources traversed, {} nodes removed in this run",
+                new Object[] {position != null ? position : roots.get(rootIndex), nbResourceParsed, nbRemoved});
+    }
+
+    /**
+     * stops the run in progress, if any, once its current chunk is done
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return persisted state, empty if there is none or if it is one of other roots
+     * @throws IOException
+     */
+    Properties load() throws IOException {
+        Properties state = new Properties();
+        if (stateFile.isFile()) {
+            InputStream input = new FileInputStream(stateFile);
+            try {
+                state.load(input);
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
+            if (!StringUtils.join(roots, ",").equals(state.getProperty(KEY_ROOTS))) {
+                logger.info("configured roots changed, scheduled cleanup starts over");
+                state.clear();
+            }
+        }
+        return state;
+    }
+
+    /**
+     * persists the position the next chunk starts from, replacing the previous one atomically
+     * @param root
+     * @param position
+     * @throws IOException
+     */
+    private void save(String root, String position) throws IOException {
+        Properties state = new Properties();
+        state.setProperty(KEY_ROOTS, StringUtils.join(roots, ","));
+        state.setProperty(KEY_ROOT, root);
+        if (position != null) {
+            state.setProperty(KEY_POSITION, position);
+        }
+        File temporary = new File(stateFile.getPath() + TEMPORARY);
+        OutputStream output = new FileOutputStream(temporary);
+        try {
+            state.store(output, "scheduled type cleanup position");
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+        if (!temporary.renameTo(stateFile) && !(stateFile.delete() && temporary.renameTo(stateFile))) {
+            throw new IOException("unable to persist scheduled cleanup position in " + stateFile);
+        }
+    }
+
+    private void reset() {
+        if (stateFile.isFile() && !stateFile.delete()) {
+            logger.warn("unable to delete {}, scheduled cleanup might not start over", stateFile);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limit shared by all the threads doing the same kind of operation, e.g. visiting nodes.
+ * Each operation gets a time slot, callers waiting for theirs, and slots get longer as long as
+ * the repository answers slower than a latency threshold, then shorter again once it answers
+ * faster.
+ */
+class Throttle {
+
+    /**
+     * throttle letting everything through
+     */
+    static final Throttle NONE = new Throttle(0, 0);
+
+    static final long MIN_PENALTY = TimeUnit.MICROSECONDS.toNanos(100);
+
+    static final long MAX_PENALTY = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * time slot of an operation, in ns, 0 for no limit
+     */
+    private final long interval;
+
+    /**
+     * latency, in ns, above which operations get slowed down, 0 for no back-off
+     */
+    private final long latencyThreshold;
+
+    /**
+     * time added to each slot, in ns, because of latency
+     */
+    private long penalty;
+
+    /**
+     * start of the next free slot
+     */
+    private long nextFree;
+
+    /**
+     * @param rate maximum number of operations per second, 0 for no limit
+     * @param latencyThreshold latency, in ms, above which operations are slowed down, 0 for no back-off
+     */
+    Throttle(double rate, long latencyThreshold) {
+        this.interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+        this.latencyThreshold = TimeUnit.MILLISECONDS.toNanos(latencyThreshold);
+    }
+
+    /**
+     * waits for the slot of some operations
+     * @param permits number of operations
+     */
+    void acquire(long permits) {
+        if (interval == 0 && latencyThreshold == 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = nextFree - now > 0 ? nextFree : now;
+            nextFree = start + interval * permits + penalty;
+            wait = start - now;
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * adapts slots to how long an operation took
+     * @param latency duration of an operation, in ns
+     */
+    synchronized void record(long latency) {
+        if (latencyThreshold == 0) {
+            return;
+        }
+        if (latency > latencyThreshold) {
+            penalty = Math.min(MAX_PENALTY, Math.max(MIN_PENALTY, penalty * 2));
+        } else if (penalty > 0) {
+            penalty = penalty / 2 < MIN_PENALTY ? 0 : penalty / 2;
+        }
+    }
+
+    /**
+     * @return time currently added to each slot because of latency, in ms
+     */
+    synchronized double getBackOff() {
+        return penalty / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return true if operations are limited or slowed down at all
+     */
+    boolean isActive() {
+        return interval > 0 || latencyThreshold > 0;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Paths, each with an optional value, none of them being a descendant of another one:
+ * adding a path drops its descendants, adding a descendant of a path already there does nothing.
+ * Paths are kept in hierarchical order, i.e. each path is directly followed by its descendants.
+ */
+class TopmostPaths {
+
+    /**
+     * orders paths as strings, '/' coming before any other character
+     */
+    static final Comparator<String> HIERARCHICAL = new Comparator<String>() {
+        @Override
+        public int compare(String path1, String path2) {
+            int length = Math.min(path1.length(), path2.length());
+            for (int i = 0; i < length; i++) {
+                char c1 = path1.charAt(i);
+                char c2 = path2.charAt(i);
+                if (c1 != c2) {
+                    if (c1 == '/') {
+                        return -1;
+                    }
+                    if (c2 == '/') {
+                        return 1;
+                    }
+                    return c1 - c2;
+                }
+            }
+            return path1.length() - path2.length();
+        }
+    };
+
+    private final TreeMap<String, String> paths = new TreeMap<String, String>(HIERARCHICAL);
+
+    /**
+     * @param path absolute path
+     * @return false if the path or one of its ancestors is already there
+     */
+    boolean add(String path) {
+        return add(path, null);
+    }
+
+    /**
+     * @param path absolute path
+     * @param value value associated to the path
+     * @return false if the path or one of its ancestors is already there
+     */
+    boolean add(String path, String value) {
+        if (hasAncestorOrSelf(path)) {
+            return false;
+        }
+        String prefix = path.endsWith("/") ? path : path + "/";
+        paths.subMap(prefix, prefix + Character.MAX_VALUE).clear();
+        paths.put(path, value);
+        return true;
+    }
+
+    /**
+     * @param path
+     * @return true if the path or one of its ancestors is there
+     */
+    boolean hasAncestorOrSelf(String path) {
+        String ancestor = path;
+        while (ancestor.length() > 0) {
+            if (paths.containsKey(ancestor)) {
+                return true;
+            }
+            int index = ancestor.lastIndexOf('/');
+            ancestor = index > 0 ? ancestor.substring(0, index) : index == 0 && ancestor.length() > 1 ? "/" : "";
+        }
+        return false;
+    }
+
+    /**
+     * @return paths in hierarchical order, with their values
+     */
+    Set<Map.Entry<String, String>> entries() {
+        return paths.entrySet();
+    }
+
+    /**
+     * @return paths in hierarchical order
+     */
+    Set<String> paths() {
+        return paths.keySet();
+    }
+
+    int size() {
+        return paths.size();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Iterative, depth first, pre-order cursor over a tree.
+ * <p>
+ * The cursor doesn't use the call stack, and keeps at most {@link #MAX_OPEN_ITERATORS} child
+ * iterators open, for the deepest levels: everything else about its position is derived from
+ * the path of the current item, so memory doesn't grow with the depth of the tree. When going
+ * back up to a level whose iterator has been dropped, children of that level are listed again
+ * and skipped until the current ancestor.
+ * <p>
+ * The position of the cursor is the path of the next item to visit, and a new cursor can be
+ * created from it to resume a traversal. Items are visited at least once: if the tree changed
+ * in between so that the position can't be found anymore, the traversal restarts from the
+ * first child of its nearest existing ancestor.
+ * @param <T> tree items
+ */
+abstract class TreeCursor<T> {
+
+    static final int MAX_OPEN_ITERATORS = 64;
+
+    private final T root;
+
+    private final String position;
+
+    private boolean initialized;
+
+    private String rootPath;
+
+    /**
+     * child iterators of the deepest levels, last one listing siblings of the current item
+     */
+    private final LinkedList<Iterator<T>> iterators = new LinkedList<Iterator<T>>();
+
+    private T current;
+
+    private String currentPath;
+
+    private int currentDepth;
+
+    private boolean descend;
+
+    private T next;
+
+    private int nextDepth;
+
+    private boolean advanced;
+
+    /**
+     * @param root item the traversal starts from
+     */
+    TreeCursor(T root) {
+        this(root, null);
+    }
+
+    /**
+     * @param root item the traversal started from
+     * @param position position of a previous cursor on the same root, i.e. path of the next item to visit
+     */
+    TreeCursor(T root, String position) {
+        this.root = root;
+        this.position = position;
+    }
+
+    /**
+     * positions the cursor on its root, or on the position it has been created with
+     */
+    private void init() {
+        initialized = true;
+        rootPath = pathOf(root);
+        next = root;
+        nextDepth = 0;
+        advanced = true;
+        if (position != null && isDescendant(position)) {
+            String path = position;
+            T item = resolve(path);
+            while (item == null && isDescendant(path)) {
+                path = parentOf(path);
+                item = resolve(path);
+            }
+            if (item != null) {
+                if (path.equals(position)) {
+                    next = item;
+                    nextDepth = depthOf(path);
+                } else {
+                    current = item;
+                    currentPath = path;
+                    currentDepth = depthOf(path);
+                    descend = true;
+                    advanced = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param item
+     * @return children of the item, in a stable order
+     */
+    protected abstract Iterator<T> children(T item);
+
+    /**
+     * @param item
+     * @return absolute path of the item
+     */
+    protected abstract String pathOf(T item);
+
+    /**
+     * @param path
+     * @return item at that path, null if it doesn't exist (anymore)
+     */
+    protected abstract T resolve(String path);
+
+    /**
+     * @return next item in pre-order, descending in the previous one unless {@link #skipChildren()}
+     * has been called, null once the traversal is complete
+     */
+    T next() {
+        if (!initialized) {
+            init();
+        }
+        if (!advanced) {
+            advance();
+        }
+        advanced = false;
+        current = next;
+        if (current != null) {
+            currentPath = pathOf(current);
+            currentDepth = nextDepth;
+            descend = true;
+        }
+        next = null;
+        return current;
+    }
+
+    /**
+     * don't descend in the item last returned by {@link #next()}. Has to be called before
+     * {@link #getPosition()}.
+     */
+    void skipChildren() {
+        descend = false;
+    }
+
+    /**
+     * @return position of the cursor, i.e. path of the next item to visit, null if traversal is complete
+     */
+    String getPosition() {
+        if (!initialized) {
+            init();
+        }
+        if (!advanced) {
+            advance();
+            advanced = true;
+        }
+        return next != null ? pathOf(next) : null;
+    }
+
+    /**
+     * @return depth of the item last returned, relative to the root
+     */
+    int getDepth() {
+        return currentDepth;
+    }
+
+    private void advance() {
+        next = null;
+        if (current == null) {
+            return;
+        }
+        if (descend) {
+            Iterator<T> children = children(current);
+            if (children.hasNext()) {
+                iterators.addLast(children);
+                if (iterators.size() > MAX_OPEN_ITERATORS) {
+                    iterators.removeFirst();
+                }
+                next = children.next();
+                nextDepth = currentDepth + 1;
+                return;
+            }
+        }
+        String path = currentPath;
+        int depth = currentDepth;
+        while (depth > 0) {
+            Iterator<T> siblings = iterators.isEmpty() ? reopen(path) : iterators.getLast();
+            if (siblings.hasNext()) {
+                next = siblings.next();
+                nextDepth = depth;
+                return;
+            }
+            iterators.removeLast();
+            path = parentOf(path);
+            depth--;
+        }
+    }
+
+    /**
+     * lists again siblings of the item at path, positioned right after it
+     * @param path
+     * @return
+     */
+    private Iterator<T> reopen(String path) {
+        T parent = resolve(parentOf(path));
+        Iterator<T> siblings = parent != null ? children(parent) : new LinkedList<T>().iterator();
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        boolean found = false;
+        while (!found && siblings.hasNext()) {
+            String siblingPath = pathOf(siblings.next());
+            found = name.equals(siblingPath.substring(siblingPath.lastIndexOf('/') + 1));
+        }
+        if (!found && parent != null) {
+            siblings = children(parent);
+        }
+        iterators.addLast(siblings);
+        return siblings;
+    }
+
+    private boolean isDescendant(String path) {
+        return path.startsWith(rootPath.endsWith("/") ? rootPath : rootPath + "/") && path.length() > rootPath.length();
+    }
+
+    private String parentOf(String path) {
+        int index = path.lastIndexOf('/');
+        return index > 0 ? path.substring(0, index) : "/";
+    }
+
+    /**
+     * @param path root path, or path of one of its descendants
+     * @return depth of the path relative to the root, 0 for the root itself
+     */
+    private int depthOf(String path) {
+        return path.equals(rootPath) ? 0 : segmentsOf(path) - segmentsOf(rootPath);
+    }
+
+    /**
+     * @param path
+     * @return number of segments of an absolute path, 0 for /
+     */
+    private static int segmentsOf(String path) {
+        int segments = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/' && i + 1 < path.length()) {
+                segments++;
+            }
+        }
+        return segments;
+    }
+}
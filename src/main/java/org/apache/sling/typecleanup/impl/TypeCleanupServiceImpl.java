@@ -28,239 +28,1857 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.typecleanup.TypeCleanupBatchListener;
 import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.apache.sling.typecleanup.TypeCleanupJob;
+import org.apache.sling.typecleanup.TypeCleanupListener;
+import org.apache.sling.typecleanup.TypeCleanupOptions;
 import org.apache.sling.typecleanup.TypeCleanupService;
+import org.apache.sling.typecleanup.TypeCleanupStatsMBean;
+import org.apache.sling.typecleanup.TypeInventory;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.query.Query;
 
 @Component(policy= ConfigurationPolicy.REQUIRE, metatype = true, immediate = true)
-@Service
+@Service(TypeCleanupService.class)
 @Properties({
         @Property(name=TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, description = "%" + TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, value = {"",""}),
-        @Property(name=TypeCleanupServiceImpl.PROP_EXCLUSIONS_PREFIXES, description = "%" + TypeCleanupServiceImpl.PROP_EXCLUSIONS_PREFIXES, value = {"",""})
+        @Property(name=TypeCleanupServiceImpl.PROP_EXCLUSIONS_PREFIXES, description = "%" + TypeCleanupServiceImpl.PROP_EXCLUSIONS_PREFIXES, value = {"",""}),
+        @Property(name=TypeCleanupServiceImpl.PROP_CACHE_SIZE, description = "%" + TypeCleanupServiceImpl.PROP_CACHE_SIZE, intValue = TypeCleanupServiceImpl.DEFAULT_CACHE_SIZE),
+        @Property(name=TypeCleanupServiceImpl.PROP_CACHE_SHARED, description = "%" + TypeCleanupServiceImpl.PROP_CACHE_SHARED, boolValue = false),
+        @Property(name=TypeCleanupServiceImpl.PROP_PARALLELISM, description = "%" + TypeCleanupServiceImpl.PROP_PARALLELISM, intValue = TypeCleanupServiceImpl.DEFAULT_PARALLELISM),
+        @Property(name=TypeCleanupServiceImpl.PROP_TRAVERSAL_JCR, description = "%" + TypeCleanupServiceImpl.PROP_TRAVERSAL_JCR, boolValue = false),
+        @Property(name=TypeCleanupServiceImpl.PROP_JOBS_MAX, description = "%" + TypeCleanupServiceImpl.PROP_JOBS_MAX, intValue = TypeCleanupServiceImpl.DEFAULT_JOBS_MAX),
+        @Property(name=TypeCleanupServiceImpl.PROP_JOBS_QUEUE, description = "%" + TypeCleanupServiceImpl.PROP_JOBS_QUEUE, intValue = TypeCleanupServiceImpl.DEFAULT_JOBS_QUEUE),
+        @Property(name=TypeCleanupServiceImpl.PROP_JOBS_RETAINED, description = "%" + TypeCleanupServiceImpl.PROP_JOBS_RETAINED, intValue = TypeCleanupServiceImpl.DEFAULT_JOBS_RETAINED),
+        @Property(name=TypeCleanupServiceImpl.PROP_INDEX_ROOTS, description = "%" + TypeCleanupServiceImpl.PROP_INDEX_ROOTS, value = {""}),
+        @Property(name=TypeCleanupServiceImpl.PROP_CLEANUP_BATCH_SIZE, description = "%" + TypeCleanupServiceImpl.PROP_CLEANUP_BATCH_SIZE, intValue = TypeCleanupServiceImpl.DEFAULT_CLEANUP_BATCH_SIZE),
+        @Property(name=TypeCleanupServiceImpl.PROP_CLEANUP_COMMIT_TARGET, description = "%" + TypeCleanupServiceImpl.PROP_CLEANUP_COMMIT_TARGET, longValue = TypeCleanupServiceImpl.DEFAULT_CLEANUP_COMMIT_TARGET),
+        @Property(name=TypeCleanupServiceImpl.PROP_CLEANUP_RETRIES, description = "%" + TypeCleanupServiceImpl.PROP_CLEANUP_RETRIES, intValue = TypeCleanupServiceImpl.DEFAULT_CLEANUP_RETRIES),
+        @Property(name=TypeCleanupServiceImpl.PROP_CLEANUP_RETRY_DELAY, description = "%" + TypeCleanupServiceImpl.PROP_CLEANUP_RETRY_DELAY, longValue = TypeCleanupServiceImpl.DEFAULT_CLEANUP_RETRY_DELAY),
+        @Property(name=TypeCleanupServiceImpl.PROP_CLEANUP_PAUSE, description = "%" + TypeCleanupServiceImpl.PROP_CLEANUP_PAUSE, longValue = TypeCleanupServiceImpl.DEFAULT_CLEANUP_PAUSE),
+        @Property(name=TypeCleanupServiceImpl.PROP_CLEANUP_PARALLELISM, description = "%" + TypeCleanupServiceImpl.PROP_CLEANUP_PARALLELISM, intValue = TypeCleanupServiceImpl.DEFAULT_CLEANUP_PARALLELISM),
+        @Property(name=TypeCleanupServiceImpl.PROP_PATHS_SPILL_THRESHOLD, description = "%" + TypeCleanupServiceImpl.PROP_PATHS_SPILL_THRESHOLD, longValue = TypeCleanupServiceImpl.DEFAULT_PATHS_SPILL_THRESHOLD),
+        @Property(name=TypeCleanupServiceImpl.PROP_THROTTLE_VISITS, description = "%" + TypeCleanupServiceImpl.PROP_THROTTLE_VISITS, intValue = 0),
+        @Property(name=TypeCleanupServiceImpl.PROP_THROTTLE_DELETES, description = "%" + TypeCleanupServiceImpl.PROP_THROTTLE_DELETES, intValue = 0),
+        @Property(name=TypeCleanupServiceImpl.PROP_THROTTLE_READ_LATENCY, description = "%" + TypeCleanupServiceImpl.PROP_THROTTLE_READ_LATENCY, longValue = 0),
+        @Property(name=TypeCleanupServiceImpl.PROP_THROTTLE_SAVE_LATENCY, description = "%" + TypeCleanupServiceImpl.PROP_THROTTLE_SAVE_LATENCY, longValue = 0),
+        @Property(name=TypeCleanupServiceImpl.PROP_REPORTS_MAX, description = "%" + TypeCleanupServiceImpl.PROP_REPORTS_MAX, intValue = TypeCleanupServiceImpl.DEFAULT_REPORTS_MAX),
+        @Property(name=TypeCleanupServiceImpl.PROP_INCREMENTAL_MARKERS, description = "%" + TypeCleanupServiceImpl.PROP_INCREMENTAL_MARKERS, value = {"jcr:lastModified", "cq:lastModified", "jcr:created"}),
+        @Property(name=TypeCleanupServiceImpl.PROP_INCREMENTAL_MARGIN, description = "%" + TypeCleanupServiceImpl.PROP_INCREMENTAL_MARGIN, longValue = TypeCleanupServiceImpl.DEFAULT_INCREMENTAL_MARGIN),
+        @Property(name=TypeCleanupServiceImpl.PROP_CHECKERS_POOL, description = "%" + TypeCleanupServiceImpl.PROP_CHECKERS_POOL, intValue = TypeCleanupServiceImpl.DEFAULT_CHECKERS_POOL),
+        @Property(name=TypeCleanupServiceImpl.PROP_SCHEDULE_EXPRESSION, description = "%" + TypeCleanupServiceImpl.PROP_SCHEDULE_EXPRESSION, value = ""),
+        @Property(name=TypeCleanupServiceImpl.PROP_SCHEDULE_ROOTS, description = "%" + TypeCleanupServiceImpl.PROP_SCHEDULE_ROOTS, value = {""}),
+        @Property(name=TypeCleanupServiceImpl.PROP_SCHEDULE_DURATION, description = "%" + TypeCleanupServiceImpl.PROP_SCHEDULE_DURATION, longValue = TypeCleanupServiceImpl.DEFAULT_SCHEDULE_DURATION),
+        @Property(name=TypeCleanupServiceImpl.PROP_PRUNING_PATHS, description = "%" + TypeCleanupServiceImpl.PROP_PRUNING_PATHS, value = {"/jcr:system"}),
+        @Property(name=TypeCleanupServiceImpl.PROP_PRUNING_NAMES, description = "%" + TypeCleanupServiceImpl.PROP_PRUNING_NAMES, value = {"rep:policy", "rep:repoPolicy"}),
+        @Property(name=TypeCleanupServiceImpl.PROP_PRUNING_NODE_TYPES, description = "%" + TypeCleanupServiceImpl.PROP_PRUNING_NODE_TYPES, value = {""}),
+        @Property(name=TypeCleanupServiceImpl.PROP_PRUNING_DEPTH, description = "%" + TypeCleanupServiceImpl.PROP_PRUNING_DEPTH, intValue = 0)
 })
-public class TypeCleanupServiceImpl implements TypeCleanupService{
+public class TypeCleanupServiceImpl implements TypeCleanupService, EventHandler {
     Logger logger = LoggerFactory.getLogger(this.getClass());
 
     public static final String PROP_INCLUSIONS_PREFIXES = "org.apache.sling.typecleanup.inclusions.prefixes";
 
     public static final String PROP_EXCLUSIONS_PREFIXES = "org.apache.sling.typecleanup.exclusions.prefixes";
 
+    public static final String PROP_CACHE_SIZE = "org.apache.sling.typecleanup.cache.size";
+
+    public static final String PROP_CACHE_SHARED = "org.apache.sling.typecleanup.cache.shared";
+
+    public static final String PROP_PARALLELISM = "org.apache.sling.typecleanup.parallelism";
+
+    public static final String PROP_TRAVERSAL_JCR = "org.apache.sling.typecleanup.traversal.jcr";
+
+    static final String PN_RESOURCE_TYPE = "sling:resourceType";
+
+    static final String PN_PRIMARY_TYPE = "jcr:primaryType";
+
+    /**
+     * number of submitted paths validated together
+     */
+    static final int VALIDATION_BATCH_SIZE = 1000;
+
+    static final int DEFAULT_CACHE_SIZE = 1000;
+
+    static final int DEFAULT_PARALLELISM = 1;
+
+    public static final String PROP_JOBS_MAX = "org.apache.sling.typecleanup.jobs.max";
+
+    public static final String PROP_JOBS_QUEUE = "org.apache.sling.typecleanup.jobs.queue";
+
+    public static final String PROP_JOBS_RETAINED = "org.apache.sling.typecleanup.jobs.retained";
+
+    static final int DEFAULT_JOBS_MAX = 2;
+
+    static final int DEFAULT_JOBS_QUEUE = 10;
+
+    static final int DEFAULT_JOBS_RETAINED = 20;
+
+    public static final String PROP_INDEX_ROOTS = "org.apache.sling.typecleanup.index.roots";
+
+    static final String INDEX_FILE = "obsolete-index.txt";
+
+    public static final String PROP_CLEANUP_BATCH_SIZE = "org.apache.sling.typecleanup.cleanup.batch.size";
+
+    public static final String PROP_CLEANUP_COMMIT_TARGET = "org.apache.sling.typecleanup.cleanup.commit.target";
+
+    public static final String PROP_CLEANUP_RETRIES = "org.apache.sling.typecleanup.cleanup.retries";
+
+    public static final String PROP_CLEANUP_RETRY_DELAY = "org.apache.sling.typecleanup.cleanup.retry.delay";
+
+    public static final String PROP_CLEANUP_PAUSE = "org.apache.sling.typecleanup.cleanup.pause";
+
+    static final int DEFAULT_CLEANUP_BATCH_SIZE = 1000;
+
+    static final long DEFAULT_CLEANUP_COMMIT_TARGET = 2000;
+
+    static final int DEFAULT_CLEANUP_RETRIES = 3;
+
+    static final long DEFAULT_CLEANUP_RETRY_DELAY = 500;
+
+    static final long DEFAULT_CLEANUP_PAUSE = 0;
+
+    public static final String PROP_CLEANUP_PARALLELISM = "org.apache.sling.typecleanup.cleanup.parallelism";
+
+    static final int DEFAULT_CLEANUP_PARALLELISM = 1;
+
+    public static final String PROP_PATHS_SPILL_THRESHOLD = "org.apache.sling.typecleanup.paths.spill.threshold";
+
+    static final long DEFAULT_PATHS_SPILL_THRESHOLD = 0;
+
+    public static final String PROP_THROTTLE_VISITS = "org.apache.sling.typecleanup.throttle.visits";
+
+    public static final String PROP_THROTTLE_DELETES = "org.apache.sling.typecleanup.throttle.deletes";
+
+    public static final String PROP_THROTTLE_READ_LATENCY = "org.apache.sling.typecleanup.throttle.read.latency";
+
+    public static final String PROP_THROTTLE_SAVE_LATENCY = "org.apache.sling.typecleanup.throttle.save.latency";
+
+    public static final String PROP_REPORTS_MAX = "org.apache.sling.typecleanup.reports.max";
+
+    static final int DEFAULT_REPORTS_MAX = 10;
+
+    static final String REPORTS_DIRECTORY = "reports";
+
+    public static final String PROP_INCREMENTAL_MARKERS = "org.apache.sling.typecleanup.incremental.markers";
+
+    static final String[] DEFAULT_INCREMENTAL_MARKERS = {"jcr:lastModified", "cq:lastModified", "jcr:created"};
+
+    public static final String PROP_INCREMENTAL_MARGIN = "org.apache.sling.typecleanup.incremental.margin";
+
+    static final long DEFAULT_INCREMENTAL_MARGIN = 60000;
+
+    static final String WATERMARKS_DIRECTORY = "watermarks";
+
+    public static final String PROP_CHECKERS_POOL = "org.apache.sling.typecleanup.checkers.pool";
+
+    static final int DEFAULT_CHECKERS_POOL = 4;
+
+    public static final String PROP_SCHEDULE_EXPRESSION = "org.apache.sling.typecleanup.schedule.expression";
+
+    public static final String PROP_SCHEDULE_ROOTS = "org.apache.sling.typecleanup.schedule.roots";
+
+    public static final String PROP_SCHEDULE_DURATION = "org.apache.sling.typecleanup.schedule.duration";
+
+    static final long DEFAULT_SCHEDULE_DURATION = 3600000;
+
+    /**
+     * number of resources a scheduled cleanup scans before removing obsolete ones, and persisting its position
+     */
+    static final int SCHEDULE_CHUNK_SIZE = 1000;
+
+    static final String SCHEDULE_STATE_FILE = "scheduled-cleanup.properties";
+
+    public static final String PROP_PRUNING_PATHS = "org.apache.sling.typecleanup.pruning.paths";
+
+    public static final String PROP_PRUNING_NAMES = "org.apache.sling.typecleanup.pruning.names";
+
+    public static final String PROP_PRUNING_NODE_TYPES = "org.apache.sling.typecleanup.pruning.nodetypes";
+
+    public static final String PROP_PRUNING_DEPTH = "org.apache.sling.typecleanup.pruning.depth";
+
+    /**
+     * whiteboard properties of the scheduler
+     */
+    private static final String SCHEDULER_EXPRESSION = "scheduler.expression";
+
+    private static final String SCHEDULER_CONCURRENT = "scheduler.concurrent";
+
+    /**
+     * paths changes of resource type definitions happen under
+     */
+    private static final String[] TYPE_ROOTS = {"/apps", "/libs"};
+
+    private static final int MAX_SCAN_SIZES = 100;
+
+    /**
+     * resource types patterns resource will be checked against, and possible exclusions,
+     * replaced as a whole on each configuration so that a running scan never sees half built lists
+     */
+    protected volatile ResourceTypeMatcher matcher = ResourceTypeMatcher.EMPTY;
+
+    /**
+     * subtrees traversals don't descend in, replaced as a whole on each configuration
+     */
+    protected volatile PruningRules pruning = PruningRules.NONE;
+
+    /**
+     * maximum number of resource types a type cache holds
+     */
+    protected int cacheSize = DEFAULT_CACHE_SIZE;
+
+    /**
+     * type cache shared across scans, null if each scan has its own
+     */
+    protected volatile ResourceTypeCache sharedCache;
+
+    /**
+     * incremented each time a resource type definition might have changed
+     */
+    private final AtomicLong typesGeneration = new AtomicLong();
+
+    /**
+     * identifies this instance of the service, type definitions changes being only known while it is running
+     */
+    private final String instanceId = UUID.randomUUID().toString();
+
+    /**
+     * number of workers a tree is scanned with, 1 meaning sequential scans
+     */
+    protected volatile int parallelism = DEFAULT_PARALLELISM;
+
+    /**
+     * true if sequential traversals walk JCR nodes instead of resources, when the tree is backed by JCR
+     */
+    protected volatile boolean jcrTraversal;
+
+    /**
+     * pool parallel scans run their workers in, null if scans are sequential
+     */
+    private volatile ExecutorService scanExecutor;
+
+    /**
+     * pool partitions of parallel removals run in, null if removals are sequential
+     */
+    private volatile ExecutorService cleanupExecutor;
+
+    /**
+     * pool asynchronous scan jobs run in
+     */
+    private ExecutorService jobExecutor;
+
+    /**
+     * number of finished jobs that are kept for their results to be fetched
+     */
+    protected int maxRetainedJobs = DEFAULT_JOBS_RETAINED;
+
+    /**
+     * submitted jobs by id, oldest first
+     */
+    private final Map<String, ScanJob> jobs = new LinkedHashMap<String, ScanJob>();
+
+    /**
+     * number of resources the last complete traversals of recently scanned paths went through
+     */
+    private final Map<String, Long> scanSizes = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_SCAN_SIZES;
+        }
+    };
+
+    /**
+     * index of obsolete resources maintained with resource events, null if no root is configured
+     */
+    protected volatile ObsoleteIndex index;
+
+    /**
+     * matcher the current index has been set up with
+     */
+    private ResourceTypeMatcher indexMatcher;
+
+    /**
+     * maximum number of nodes a cleanup commit removes, descendants included
+     */
+    protected int cleanupBatchSize = DEFAULT_CLEANUP_BATCH_SIZE;
+
+    /**
+     * duration, in ms, above which cleanup commits get smaller
+     */
+    protected long cleanupCommitTarget = DEFAULT_CLEANUP_COMMIT_TARGET;
+
+    protected int cleanupRetries = DEFAULT_CLEANUP_RETRIES;
+
+    protected long cleanupRetryDelay = DEFAULT_CLEANUP_RETRY_DELAY;
+
+    protected long cleanupPause = DEFAULT_CLEANUP_PAUSE;
+
+    /**
+     * number of sessions obsolete paths are removed with, 1 meaning sequential removal
+     */
+    protected int cleanupParallelism = DEFAULT_CLEANUP_PARALLELISM;
+
+    /**
+     * number of encoded bytes above which paths of a result are spilled to a temporary file, 0 to keep them in memory
+     */
+    protected long pathsSpillThreshold = DEFAULT_PATHS_SPILL_THRESHOLD;
+
+    /**
+     * limits node visits of all scans together
+     */
+    protected volatile Throttle visitThrottle = Throttle.NONE;
+
+    /**
+     * limits node removals of all cleanups together
+     */
+    protected volatile Throttle deleteThrottle = Throttle.NONE;
+
+    /**
+     * statistics of all scans and cleanups, exposed as an MBean
+     */
+    final TypeCleanupStats stats = new TypeCleanupStats();
+
+    private ServiceRegistration statsRegistration;
+
+    private BundleContext bundleContext;
+
+    protected int maxReports = DEFAULT_REPORTS_MAX;
+
+    /**
+     * directory scan reports are kept in, the bundle's data area if there is one
+     */
+    private volatile File reportsDirectory;
+
+    /**
+     * properties whose date marks a resource as changed, for incremental scans
+     */
+    protected volatile List<String> changeMarkers = Arrays.asList(DEFAULT_INCREMENTAL_MARKERS);
+
+    /**
+     * time, in ms, changes are looked for before the previous incremental scan started, for changes
+     * marked before but saved or indexed after it
+     */
+    protected long changeMargin = DEFAULT_INCREMENTAL_MARGIN;
+
+    /**
+     * directory incremental scans keep their watermarks in, the bundle's data area if there is one
+     */
+    private volatile File watermarksDirectory;
+
+    /**
+     * roots incremental scans are running on, that another incremental scan can't write the watermark of
+     */
+    private final Set<String> incrementalRoots = new HashSet<String>();
+
+    /**
+     * administrative resolvers resource types are checked with, kept open between scans
+     */
+    private volatile CheckerPool checkers = new CheckerPool(DEFAULT_CHECKERS_POOL);
+
+    /**
+     * scans in flight that identical requests can attach to, by request key
+     */
+    private final ConcurrentMap<String, CoalescedScan> flights = new ConcurrentHashMap<String, CoalescedScan>();
+
+    private ServiceRegistration eventHandlerRegistration;
+
+    private ServiceRegistration indexRegistration;
+
+    /**
+     * cleanup run by the scheduler, null if none is configured
+     */
+    private ScheduledCleanup scheduledCleanup;
+
+    private ServiceRegistration scheduleRegistration;
+
+    @Reference
+    ResourceResolverFactory factory;
+
+    @Activate
+    private void activate(BundleContext bundleContext, Map properties) {
+        logger.debug("activate");
+        this.bundleContext = bundleContext;
+        configure(properties);
+        Dictionary<String, Object> statsProperties = new Hashtable<String, Object>();
+        statsProperties.put("jmx.objectname", TypeCleanupStatsMBean.OBJECT_NAME);
+        statsRegistration = bundleContext.registerService(TypeCleanupStatsMBean.class.getName(), stats, statsProperties);
+    }
+
+    @Modified
+    private void modified(final Map properties) {
+        logger.debug("modified");
+        configure(properties);
+    }
+
+    @Deactivate
+    private synchronized void deactivate() {
+        logger.debug("deactivate");
+        if (statsRegistration != null) {
+            statsRegistration.unregister();
+            statsRegistration = null;
+        }
+        unregisterEventHandler();
+        unregisterSchedule();
+        closeIndex();
+        shutdownScanExecutor();
+        shutdownCleanupExecutor();
+        shutdownJobExecutor();
+        checkers.close();
+        bundleContext = null;
+    }
+
+    private synchronized void configure(final Map properties) {
+        logger.info("configuring Type cleanup");
+        setupLists(properties);
+        setupCache(properties);
+        setupParallelism(properties);
+        setupTraversal(properties);
+        setupPruning(properties);
+        setupJobs(properties);
+        setupIndex(properties);
+        setupCleanup(properties);
+        setupThrottling(properties);
+        setupReports(properties);
+        setupIncremental(properties);
+        setupCheckers(properties);
+        setupSchedule(properties);
+    }
+
+    /**
+     * Sets up the cleanup of configured roots the scheduler runs in time slices, replacing the previous one,
+     * whose position is kept in the bundle's data area
+     * @param properties
+     */
+    protected void setupSchedule(final Map properties) {
+        unregisterSchedule();
+        String expression = PropertiesUtil.toString(properties.get(PROP_SCHEDULE_EXPRESSION), "");
+        List<String> roots = normalizeRoots(PropertiesUtil.toStringArray(properties.get(PROP_SCHEDULE_ROOTS), new String[0]));
+        if (StringUtils.isBlank(expression) || roots.isEmpty() || bundleContext == null) {
+            return;
+        }
+        long maxDuration = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_SCHEDULE_DURATION), DEFAULT_SCHEDULE_DURATION));
+        scheduledCleanup = new ScheduledCleanup(this, roots, maxDuration, SCHEDULE_CHUNK_SIZE, bundleContext.getDataFile(SCHEDULE_STATE_FILE));
+        Dictionary<String, Object> scheduleProperties = new Hashtable<String, Object>();
+        scheduleProperties.put(SCHEDULER_EXPRESSION, expression.trim());
+        scheduleProperties.put(SCHEDULER_CONCURRENT, Boolean.FALSE);
+        scheduleRegistration = bundleContext.registerService(Runnable.class.getName(), scheduledCleanup, scheduleProperties);
+        logger.info("scheduled cleanup of {} at {}, for at most {} ms per run", new Object[] {roots, expression, maxDuration});
+    }
+
+    private void unregisterSchedule() {
+        if (scheduleRegistration != null) {
+            scheduleRegistration.unregister();
+            scheduleRegistration = null;
+        }
+        if (scheduledCleanup != null) {
+            scheduledCleanup.stop();
+            scheduledCleanup = null;
+        }
+    }
+
+    /**
+     * Sets up the pool of checker resolvers, closing the previous one
+     * @param properties
+     */
+    protected void setupCheckers(final Map properties) {
+        CheckerPool previous = checkers;
+        checkers = new CheckerPool(Math.max(0, PropertiesUtil.toInteger(properties.get(PROP_CHECKERS_POOL), DEFAULT_CHECKERS_POOL)));
+        previous.close();
+    }
+
+    /**
+     * @return administrative resolver to check resource types with, to be released once done
+     * @throws LoginException
+     */
+    protected ResourceResolver acquireChecker() throws LoginException {
+        return checkers.acquire(factory);
+    }
+
+    /**
+     * hands a checker resolver back to the pool
+     * @param checker
+     */
+    protected void releaseChecker(ResourceResolver checker) {
+        checkers.release(checker);
+    }
+
+    /**
+     * Sets up how incremental scans find changes, and where they keep their watermarks
+     * @param properties
+     */
+    protected void setupIncremental(final Map properties) {
+        List<String> markers = new ArrayList<String>();
+        for (String marker : PropertiesUtil.toStringArray(properties.get(PROP_INCREMENTAL_MARKERS), DEFAULT_INCREMENTAL_MARKERS)) {
+            if (StringUtils.isNotBlank(marker)) {
+                markers.add(marker.trim());
+            }
+        }
+        changeMarkers = markers;
+        changeMargin = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_INCREMENTAL_MARGIN), DEFAULT_INCREMENTAL_MARGIN));
+        watermarksDirectory = bundleContext != null ? bundleContext.getDataFile(WATERMARKS_DIRECTORY)
+                : new File(System.getProperty("java.io.tmpdir"), "typecleanup-" + WATERMARKS_DIRECTORY);
+    }
+
+    /**
+     * Sets up where scan reports are kept, and how many of them
+     * @param properties
+     */
+    protected void setupReports(final Map properties) {
+        maxReports = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_REPORTS_MAX), DEFAULT_REPORTS_MAX));
+        reportsDirectory = bundleContext != null ? bundleContext.getDataFile(REPORTS_DIRECTORY)
+                : new File(System.getProperty("java.io.tmpdir"), "typecleanup-" + REPORTS_DIRECTORY);
+    }
+
+    /**
+     * Sets up rate limits and latency back-off of node visits and removals, shared by all scans and cleanups
+     * @param properties
+     */
+    protected void setupThrottling(final Map properties) {
+        visitThrottle = new Throttle(Math.max(0, PropertiesUtil.toDouble(properties.get(PROP_THROTTLE_VISITS), 0)),
+                Math.max(0, PropertiesUtil.toLong(properties.get(PROP_THROTTLE_READ_LATENCY), 0)));
+        deleteThrottle = new Throttle(Math.max(0, PropertiesUtil.toDouble(properties.get(PROP_THROTTLE_DELETES), 0)),
+                Math.max(0, PropertiesUtil.toLong(properties.get(PROP_THROTTLE_SAVE_LATENCY), 0)));
+    }
+
+    /**
+     * Sets up how removals are committed
+     * @param properties
+     */
+    protected void setupCleanup(final Map properties) {
+        cleanupBatchSize = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_CLEANUP_BATCH_SIZE), DEFAULT_CLEANUP_BATCH_SIZE));
+        cleanupCommitTarget = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_CLEANUP_COMMIT_TARGET), DEFAULT_CLEANUP_COMMIT_TARGET));
+        cleanupRetries = Math.max(0, PropertiesUtil.toInteger(properties.get(PROP_CLEANUP_RETRIES), DEFAULT_CLEANUP_RETRIES));
+        cleanupRetryDelay = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_CLEANUP_RETRY_DELAY), DEFAULT_CLEANUP_RETRY_DELAY));
+        cleanupPause = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_CLEANUP_PAUSE), DEFAULT_CLEANUP_PAUSE));
+        pathsSpillThreshold = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_PATHS_SPILL_THRESHOLD), DEFAULT_PATHS_SPILL_THRESHOLD));
+        shutdownCleanupExecutor();
+        cleanupParallelism = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_CLEANUP_PARALLELISM), DEFAULT_CLEANUP_PARALLELISM));
+        if (cleanupParallelism > 1) {
+            final AtomicInteger threadIndex = new AtomicInteger();
+            cleanupExecutor = Executors.newFixedThreadPool(cleanupParallelism, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "typecleanup-cleanup-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets up the index of obsolete resources under configured roots, if roots or inclusions and exclusions
+     * changed: the index is loaded in the background from the bundle's data area if it has been built for
+     * the same roots, or bootstrapped otherwise, and listens to resource events under those roots and type
+     * definition ones
+     * @param properties
+     */
+    protected void setupIndex(final Map properties) {
+        TopmostPaths roots = new TopmostPaths();
+        String[] configuredRoots = PropertiesUtil.toStringArray(properties.get(PROP_INDEX_ROOTS));
+        if (configuredRoots != null) {
+            for (String root : configuredRoots) {
+                if (StringUtils.isNotBlank(root)) {
+                    roots.add(root.trim());
+                }
+            }
+        }
+        List<String> indexRoots = new ArrayList<String>(roots.paths());
+        ObsoleteIndex current = index;
+        ResourceTypeMatcher currentMatcher = matcher;
+        if (current != null && current.getRoots().equals(indexRoots) && indexMatcher.getInclusions().equals(currentMatcher.getInclusions())
+                && indexMatcher.getExclusions().equals(currentMatcher.getExclusions())) {
+            logger.debug("index roots and types unchanged, keeping current index");
+        } else {
+            closeIndex();
+            if (indexRoots.size() > 0 && bundleContext != null) {
+                ObsoleteIndex newIndex = new ObsoleteIndex(this, indexRoots, bundleContext.getDataFile(INDEX_FILE));
+                index = newIndex;
+                indexMatcher = currentMatcher;
+                registerIndex(newIndex);
+                openIndex(newIndex);
+            }
+        }
+        registerEventHandler();
+    }
+
+    private void closeIndex() {
+        if (indexRegistration != null) {
+            indexRegistration.unregister();
+            indexRegistration = null;
+        }
+        ObsoleteIndex current = index;
+        index = null;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * registers an index as handler of resource events under /apps, /libs, and its roots
+     * @param toRegister
+     */
+    private void registerIndex(ObsoleteIndex toRegister) {
+        StringBuilder filter = new StringBuilder("(|");
+        for (String root : TYPE_ROOTS) {
+            filter.append("(").append(SlingConstants.PROPERTY_PATH).append("=").append(root).append("/*)");
+        }
+        for (String root : toRegister.getRoots()) {
+            String escapedRoot = escapeFilterValue(root);
+            filter.append("(").append(SlingConstants.PROPERTY_PATH).append("=").append(escapedRoot).append(")");
+            filter.append("(").append(SlingConstants.PROPERTY_PATH).append("=").append(escapedRoot).append(root.endsWith("/") ? "*)" : "/*)");
+        }
+        filter.append(")");
+        indexRegistration = bundleContext.registerService(EventHandler.class.getName(), toRegister, eventHandlerProperties(filter.toString()));
+    }
+
+    /**
+     * loads an index, or seeds it with a traversal of its roots, then starts applying events queued
+     * meanwhile, in a background thread
+     * @param toOpen
+     */
+    private void openIndex(final ObsoleteIndex toOpen) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ResourceResolver walker = null;
+                try {
+                    if (!toOpen.open(factory.getAdministrativeResourceResolver(null))) {
+                        walker = factory.getAdministrativeResourceResolver(null);
+                        toOpen.bootstrap(walker);
+                    }
+                    toOpen.start();
+                } catch (Exception e) {
+                    logger.error("unable to open obsolete resources index", e);
+                } finally {
+                    if (walker != null) {
+                        walker.close();
+                    }
+                }
+            }
+        }, "typecleanup-index-open");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * registers the service as handler of resource events under /apps and /libs, once, type caches
+     * invalidation being kept apart from the index so that it stays cheap
+     */
+    private void registerEventHandler() {
+        if (bundleContext == null || eventHandlerRegistration != null) {
+            return;
+        }
+        StringBuilder filter = new StringBuilder("(|");
+        for (String root : TYPE_ROOTS) {
+            filter.append("(").append(SlingConstants.PROPERTY_PATH).append("=").append(root).append("/*)");
+        }
+        filter.append(")");
+        eventHandlerRegistration = bundleContext.registerService(EventHandler.class.getName(), this, eventHandlerProperties(filter.toString()));
+    }
+
+    /**
+     * @param filter
+     * @return registration properties of a handler of resource events matching the filter
+     */
+    private static Dictionary<String, Object> eventHandlerProperties(String filter) {
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(EventConstants.EVENT_TOPIC, new String[] {SlingConstants.TOPIC_RESOURCE_ADDED,
+                SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED});
+        properties.put(EventConstants.EVENT_FILTER, filter);
+        return properties;
+    }
+
+    private void unregisterEventHandler() {
+        if (eventHandlerRegistration != null) {
+            eventHandlerRegistration.unregister();
+            eventHandlerRegistration = null;
+        }
+    }
+
+    /**
+     * @param value
+     * @return value with LDAP filter special characters escaped
+     */
+    static String escapeFilterValue(String value) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '\\' || c == '*' || c == '(' || c == ')') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Sets up the bounded pool asynchronous scans run in. Jobs submitted with a previous configuration
+     * keep on running in the previous pool.
+     * @param properties
+     */
+    protected void setupJobs(final Map properties) {
+        int maxJobs = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_JOBS_MAX), DEFAULT_JOBS_MAX));
+        int queueSize = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_JOBS_QUEUE), DEFAULT_JOBS_QUEUE));
+        maxRetainedJobs = Math.max(0, PropertiesUtil.toInteger(properties.get(PROP_JOBS_RETAINED), DEFAULT_JOBS_RETAINED));
+        final AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor = new ThreadPoolExecutor(maxJobs, maxJobs, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "typecleanup-job-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        synchronized (jobs) {
+            if (jobExecutor != null) {
+                jobExecutor.shutdown();
+            }
+            jobExecutor = executor;
+        }
+    }
+
+    private void shutdownJobExecutor() {
+        synchronized (jobs) {
+            for (ScanJob job : jobs.values()) {
+                job.cancel();
+            }
+            if (jobExecutor != null) {
+                // queued jobs have been cancelled, running them just releases their resolvers
+                for (Runnable queued : jobExecutor.shutdownNow()) {
+                    queued.run();
+                }
+                jobExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Sets up the pool parallel scans run in, if more than one worker is configured
+     * @param properties
+     */
+    protected void setupParallelism(final Map properties) {
+        shutdownScanExecutor();
+        parallelism = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_PARALLELISM), DEFAULT_PARALLELISM));
+        if (parallelism > 1) {
+            final AtomicInteger threadIndex = new AtomicInteger();
+            scanExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "typecleanup-scan-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets up the backend sequential traversals walk the tree with
+     * @param properties
+     */
+    protected void setupTraversal(final Map properties) {
+        jcrTraversal = PropertiesUtil.toBoolean(properties.get(PROP_TRAVERSAL_JCR), false);
+    }
+
+    /**
+     * Sets up rules of subtrees traversals don't descend in, without empty ones
+     * @param properties
+     */
+    protected void setupPruning(final Map properties) {
+        pruning = new PruningRules(nonBlank(PropertiesUtil.toStringArray(properties.get(PROP_PRUNING_PATHS))),
+                nonBlank(PropertiesUtil.toStringArray(properties.get(PROP_PRUNING_NAMES))),
+                nonBlank(PropertiesUtil.toStringArray(properties.get(PROP_PRUNING_NODE_TYPES))),
+                Math.max(0, PropertiesUtil.toInteger(properties.get(PROP_PRUNING_DEPTH), 0)));
+    }
+
+    private void shutdownScanExecutor() {
+        if (scanExecutor != null) {
+            scanExecutor.shutdownNow();
+            scanExecutor = null;
+        }
+    }
+
+    private void shutdownCleanupExecutor() {
+        if (cleanupExecutor != null) {
+            cleanupExecutor.shutdownNow();
+            cleanupExecutor = null;
+        }
+    }
+
+    /**
+     * Sets up type cache size, and the cache shared across scans if configured so
+     * @param properties
+     */
+    protected void setupCache(final Map properties) {
+        cacheSize = PropertiesUtil.toInteger(properties.get(PROP_CACHE_SIZE), DEFAULT_CACHE_SIZE);
+        if (PropertiesUtil.toBoolean(properties.get(PROP_CACHE_SHARED), false)) {
+            sharedCache = new ResourceTypeCache(cacheSize, typesGeneration.get());
+        } else {
+            sharedCache = null;
+        }
+    }
+
+    /**
+     * any change under /apps or /libs might add or remove a resource type: invalidates
+     * type caches. The index, if any, handles the same events on its own.
+     * @param event
+     */
+    @Override
+    public void handleEvent(Event event) {
+        String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+        if (path != null && isTypeDefinitionPath(path)) {
+            logger.debug("{} changed, invalidating type caches", path);
+            typesGeneration.incrementAndGet();
+        }
+    }
+
+    static boolean isTypeDefinitionPath(String path) {
+        for (String root : TYPE_ROOTS) {
+            if (path.startsWith(root + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param listener listener obsolete paths are streamed to, null to keep them
+     * @return wrapper for the result of a scan, spilling its paths as configured
+     */
+    protected TypeCleanupInfo newCleanupInfo(TypeCleanupListener listener) {
+        return new TypeCleanupInfo(listener, pathsSpillThreshold);
+    }
+
+    /**
+     * @param options
+     * @param description what is scanned
+     * @return new report the scan writes obsolete paths to, null if the options don't ask for one
+     * @throws IOException
+     */
+    protected ScanReport newReport(TypeCleanupOptions options, String description) throws IOException {
+        if (!options.isReport()) {
+            return null;
+        }
+        File directory = reportsDirectory;
+        if (directory == null) {
+            throw new IOException("reports are not set up");
+        }
+        return new ScanReport(directory, description + " on " + new Date(), options.getListener(), maxReports);
+    }
+
+    /**
+     * @param reportId
+     * @return reader of the complete report with that id
+     * @throws java.io.FileNotFoundException if there is no complete report with that id
+     * @throws IOException
+     */
+    protected ScanReport.Reader openReport(String reportId) throws IOException {
+        File directory = reportsDirectory;
+        if (directory == null) {
+            throw new IOException("reports are not set up");
+        }
+        return new ScanReport.Reader(directory, reportId);
+    }
+
+    /**
+     * @param options
+     * @param report report obsolete paths are written to, null if there is none
+     * @return new wrapper of a scan with those options
+     */
+    protected TypeCleanupInfo newCleanupInfo(TypeCleanupOptions options, ScanReport report) {
+        if (report == null) {
+            return newCleanupInfo(options.getListener());
+        }
+        TypeCleanupInfo infos = newCleanupInfo(report);
+        infos.setReportId(report.getId());
+        return infos;
+    }
+
+    /**
+     * creates the state of a new scan
+     * @param infos wrapper results will be collected in
+     * @param checker resolver resource types are checked with
+     * @return
+     */
+    protected ScanContext newScanContext(TypeCleanupInfo infos, ResourceResolver checker) {
+        ResourceTypeCache typeCache = sharedCache;
+        if (typeCache == null) {
+            typeCache = new ResourceTypeCache(cacheSize, typesGeneration.get());
+        }
+        return new ScanContext(infos, checker, typeCache, matcher, pruning, visitThrottle, stats);
+    }
+
+    /**
+     * Sets up inclusion & exclusion prefixes lists, without empty prefixes, and publishes
+     * them compiled in a new matcher
+     * @param properties
+     */
+    protected void setupLists(final Map properties) {
+        String[] inclusions = PropertiesUtil.toStringArray(properties.get(PROP_INCLUSIONS_PREFIXES));
+        String[] exclusions = PropertiesUtil.toStringArray(properties.get(PROP_EXCLUSIONS_PREFIXES));
+        ResourceTypeMatcher current = matcher;
+        List<String> checkedResourceTypes = current.getInclusions();
+        List<String> excludedResourceTypes = current.getExclusions();
+        if (inclusions != null){
+            checkedResourceTypes = new ArrayList<String>();
+            for (String inclusion : inclusions){
+                if (StringUtils.isNotBlank(inclusion)){
+                    checkedResourceTypes.add(inclusion);
+                }
+            }
+        }
+
+        if (exclusions != null){
+            excludedResourceTypes = new ArrayList<String>();
+            for (String exclusion : exclusions){
+                if (StringUtils.isNotBlank(exclusion)){
+                    excludedResourceTypes.add(exclusion);
+                }
+            }
+        }
+        matcher = new ResourceTypeMatcher(checkedResourceTypes, excludedResourceTypes);
+    }
+
+    @Override
+    public boolean isConfigured() {
+        return !matcher.getInclusions().isEmpty();
+    }
+
+    /**
+     * Check if a resource type exists with the scan's checker session (resource's session
+     * might not have read access to the resource type), looking it up in the repository only
+     * if the scan's type cache doesn't know it yet
+     * @param scan
+     * @param resourceType
+     * @return
+     */
+    protected boolean resourceTypeExists(ScanContext scan, String resourceType){
+        long generation = typesGeneration.get();
+        Boolean exists = scan.typeCache.get(resourceType, generation);
+        if (exists != null) {
+            scan.infos.typeCacheHit();
+            scan.stats.typeCacheHit();
+        } else {
+            scan.infos.typeCacheMiss();
+            scan.stats.typeCacheMiss();
+            long start = System.nanoTime();
+            exists = scan.checker.getResource(resourceType) != null;
+            scan.stats.typeLookup(System.nanoTime() - start);
+            scan.typeCache.put(resourceType, exists, generation);
+        }
+        return exists;
+    }
+
+    /**
+     * Is this resource type included in the check?
+     * @param resourceType
+     * @return
+     */
+    protected boolean isTypeIncluded(String resourceType){
+        return matcher.isIncluded(resourceType);
+    }
+
+    /**
+     * test if resource's type belongs to the patterns to check and doesn't exist,
+     * @param resource
+     * @return
+     */
+    protected boolean isObsolete(Resource resource){
+        ScanContext scan = newScanContext(new TypeCleanupInfo(), resource.getResourceResolver());
+        boolean obsolete = isObsolete(scan, resource);
+        scan.flushStats();
+        return obsolete;
+    }
+
+    /**
+     * test if resource's type belongs to the patterns to check and doesn't exist, within a scan
+     * @param scan
+     * @param resource
+     * @return
+     */
+    protected boolean isObsolete(ScanContext scan, Resource resource){
+        return isObsolete(scan, resource.getResourceType());
+    }
+
+    /**
+     * test if a resource type belongs to the patterns to check and doesn't exist, within a scan
+     * @param scan
+     * @param resourceType
+     * @return
+     */
+    protected boolean isObsolete(ScanContext scan, String resourceType){
+        boolean sampled = scan.stats.sampleInclusionCheck();
+        long start = sampled ? System.nanoTime() : 0;
+        boolean included = scan.matcher.isIncluded(resourceType);
+        if (sampled) {
+            scan.stats.inclusionCheck(System.nanoTime() - start);
+        }
+        if (included && !resourceTypeExists(scan, resourceType)) {
+            scan.stats.obsolete(resourceType);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * traverses the resource tree and lists obsolete paths as follow:
+     * - if resource is obsolete, adds it to the list.
+     * - other wise look at children and re-iterate.
+     * @param infos
+     * @param checker
+     * @param resource
+     * @return
+     */
+    protected void collectObsoletePaths(final TypeCleanupInfo infos, ResourceResolver checker, Resource resource){
+        collectObsoletePaths(newScanContext(infos, checker), resource);
+    }
+
     /**
-     * set of resource types patterns resource will be checked against
+     * traverses the whole resource tree within a given scan
+     * @param scan
+     * @param resource
      */
-    protected List<String> checkedResourceTypes;
+    protected void collectObsoletePaths(final ScanContext scan, Resource resource){
+        collectObsoletePaths(scan, resource, new TypeCleanupOptions());
+    }
 
     /**
-     * possible exclusions
+     * traverses the resource tree iteratively within a given scan, from the options' resume path if any,
+     * and pauses once the options' maximum number of resources has been traversed, leaving the position
+     * to resume from in the scan's wrapper
+     * @param scan
+     * @param root
+     * @param options
      */
-    protected List<String> excludedResourceTypes;
+    protected void collectObsoletePaths(final ScanContext scan, Resource root, TypeCleanupOptions options){
+        ResourceCursor cursor = new ResourceCursor(root, options.getResumePath());
+        long traversed = 0;
+        for (Resource resource = scan.next(cursor); resource != null && !scan.infos.isCancelled(); resource = scan.next(cursor)) {
+            scan.infos.traverse();
+            if (isObsolete(scan, resource)){
+                scan.obsolete(resource.getPath(), resource.getResourceType());
+                cursor.skipChildren();
+            } else if (scan.prunes(resource)) {
+                cursor.skipChildren();
+            }
+            if (options.getMaxResources() > 0 && ++traversed >= options.getMaxResources()) {
+                scan.infos.setResumePath(cursor.getPosition());
+                return;
+            }
+        }
+    }
 
-    @Reference
-    ResourceResolverFactory factory;
+    /**
+     * same traversal as {@link #collectObsoletePaths(ScanContext, Resource, TypeCleanupOptions)}, with the same
+     * results and positions, but walking JCR nodes and reading their resource type only
+     * @param scan
+     * @param root
+     * @param options
+     * @throws RepositoryException
+     */
+    protected void collectObsoleteNodes(final ScanContext scan, Node root, TypeCleanupOptions options) throws RepositoryException {
+        JcrNodeCursor cursor = new JcrNodeCursor(root, options.getResumePath());
+        long traversed = 0;
+        for (Node node = scan.next(cursor); node != null && !scan.infos.isCancelled(); node = scan.next(cursor)) {
+            scan.infos.traverse();
+            String resourceType = JcrNodeCursor.resourceTypeOf(node);
+            if (isObsolete(scan, resourceType)){
+                scan.obsolete(node.getPath(), resourceType);
+                cursor.skipChildren();
+            } else if (scan.prunes(node)) {
+                cursor.skipChildren();
+            }
+            if (options.getMaxResources() > 0 && ++traversed >= options.getMaxResources()) {
+                scan.infos.setResumePath(cursor.getPosition());
+                return;
+            }
+        }
+    }
 
-    @Activate
-    private void activate(Map properties) {
-        logger.debug("activate");
-        configure(properties);
+    /**
+     * looks for resources whose type starts with an inclusion with a query per inclusion, and lists
+     * the topmost obsolete ones among them, as a traversal would
+     * @param scan
+     * @param root
+     */
+    protected void queryObsoletePaths(final ScanContext scan, Resource root) {
+        scan.infos.traverse();
+        if (isObsolete(scan, root)) {
+            scan.obsolete(root.getPath(), root.getResourceType());
+            return;
+        }
+        TopmostPaths obsoletePaths = new TopmostPaths();
+        for (String prefix : queryPrefixes(scan.matcher.getInclusions())) {
+            Iterator<Resource> candidates = root.getResourceResolver().findResources(buildTypeQuery(root.getPath(), prefix), Query.JCR_SQL2);
+            for (Resource candidate = scan.next(candidates); candidate != null && !scan.infos.isCancelled(); candidate = scan.next(candidates)) {
+                if (!obsoletePaths.hasAncestorOrSelf(candidate.getPath())) {
+                    scan.infos.traverse();
+                    if (isObsolete(scan, candidate)) {
+                        obsoletePaths.add(candidate.getPath(), candidate.getResourceType());
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, String> obsolete : obsoletePaths.entries()) {
+            scan.obsolete(obsolete.getKey(), obsolete.getValue());
+        }
     }
 
-    @Modified
-    private void modified(final Map properties) {
-        logger.debug("modified");
-        configure(properties);
+    /**
+     * @param inclusions
+     * @return inclusions that don't start with another one, whose query would only return candidates of that other one again
+     */
+    static List<String> queryPrefixes(List<String> inclusions) {
+        Set<String> distinct = new LinkedHashSet<String>(inclusions);
+        List<String> prefixes = new ArrayList<String>();
+        for (String inclusion : distinct) {
+            boolean covered = false;
+            for (String other : distinct) {
+                covered |= other.length() < inclusion.length() && inclusion.startsWith(other);
+            }
+            if (!covered) {
+                prefixes.add(inclusion);
+            }
+        }
+        return prefixes;
     }
 
-    @Deactivate
-    private void deactivate() {
-        logger.debug("deactivate");
+    /**
+     * traverses a tree in parallel if possible, walking JCR nodes if configured so
+     * @param scan
+     * @param root
+     * @param options
+     * @param executor pool of parallel scans, null if the traversal is sequential
+     * @throws Exception
+     */
+    protected void traverse(ScanContext scan, Resource root, TypeCleanupOptions options, ExecutorService executor) throws Exception {
+        if (executor != null && !options.isPartial()) {
+            new ParallelScan(this, scan, executor, parallelism).run(root);
+        } else {
+            Node node = jcrTraversal ? root.adaptTo(Node.class) : null;
+            if (node != null) {
+                collectObsoleteNodes(scan, node, options);
+            } else {
+                collectObsoletePaths(scan, root, options);
+            }
+        }
     }
 
-    private synchronized void configure(final Map properties) {
-        logger.info("configuring Type cleanup");
-        setupLists(properties);
+    /**
+     * @return generation of type definitions, that is only comparable within the same instance of the service
+     */
+    String typesEpoch() {
+        return instanceId + ":" + typesGeneration.get();
     }
 
     /**
-     * Sets up inclusion & exclusion prefixes lists, without empty prefixes
-     * @param properties
+     * rescans a tree from the watermark of its last incremental scan, if any and if type definitions and rules
+     * have not changed since, traversing it otherwise, and records its results as the new watermark once complete
+     * @param scan
+     * @param root
+     * @param executor pool of parallel scans, null if traversals are sequential
+     * @throws Exception
      */
-    protected void setupLists(final Map properties) {
-        String[] inclusions = PropertiesUtil.toStringArray(properties.get(PROP_INCLUSIONS_PREFIXES));
-        String[] exclusions = PropertiesUtil.toStringArray(properties.get(PROP_EXCLUSIONS_PREFIXES));
-        if (inclusions != null){
-            checkedResourceTypes = new ArrayList<String>();
-            for (String inclusion : inclusions){
-                if (StringUtils.isNotBlank(inclusion)){
-                    checkedResourceTypes.add(inclusion);
+    protected void incrementalScan(ScanContext scan, Resource root, ExecutorService executor) throws Exception {
+        File directory = watermarksDirectory;
+        if (directory == null || (!directory.isDirectory() && !directory.mkdirs())) {
+            throw new IOException("unable to set up watermarks directory " + directory);
+        }
+        boolean running;
+        synchronized (incrementalRoots) {
+            running = !incrementalRoots.add(root.getPath());
+        }
+        if (running) {
+            logger.info("{} is already scanned incrementally, traversing it", root.getPath());
+            traverse(scan, root, new TypeCleanupOptions(), executor);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        String types = typesEpoch();
+        String rules = ScanWatermark.fingerprint(scan.matcher, scan.pruning);
+        ScanReport watermark = null;
+        boolean complete = false;
+        try {
+            watermark = new ScanReport(ScanWatermark.file(directory, root.getPath()),
+                    ScanWatermark.describe(root.getPath(), start, types, rules), null);
+            ScanWatermark last = ScanWatermark.open(directory, root.getPath(), types, rules);
+            if (last == null) {
+                logger.info("no watermark of {} with current type definitions and rules, traversing it", root.getPath());
+                traverse(scan.recording(watermark), root, new TypeCleanupOptions(), executor);
+            } else {
+                try {
+                    rescan(scan.recording(watermark), root, last);
+                } finally {
+                    last.close();
                 }
             }
+            complete = !scan.infos.isCancelled();
+        } finally {
+            if (watermark != null && complete) {
+                watermark.close();
+            } else if (watermark != null) {
+                watermark.abort();
+            }
+            synchronized (incrementalRoots) {
+                incrementalRoots.remove(root.getPath());
+            }
         }
+    }
 
-        if (exclusions != null){
-            excludedResourceTypes = new ArrayList<String>();
-            for (String exclusion : exclusions){
-                if (StringUtils.isNotBlank(exclusion)){
-                    excludedResourceTypes.add(exclusion);
+    /**
+     * checks again the obsolete resources found by the last scan, then traverses subtrees marked as changed
+     * since, but the ones under a resource still obsolete: resources that are neither changed nor under a
+     * changed one can't have become obsolete as long as type definitions are the same
+     * @param scan
+     * @param root
+     * @param last
+     * @throws Exception
+     */
+    protected void rescan(ScanContext scan, Resource root, ScanWatermark last) throws Exception {
+        scan.infos.traverse();
+        if (isObsolete(scan, root)) {
+            scan.obsolete(root.getPath(), root.getResourceType());
+            return;
+        }
+        TopmostPaths changed = new TopmostPaths();
+        Iterator<Resource> changes = findChangedResources(root, last.getTime() - changeMargin);
+        for (Resource resource = scan.next(changes); resource != null && !scan.infos.isCancelled(); resource = scan.next(changes)) {
+            changed.add(resource.getPath());
+        }
+        ResourceResolver resolver = root.getResourceResolver();
+        TopmostPaths obsolete = new TopmostPaths();
+        for (String[] entry = last.next(); entry != null && !scan.infos.isCancelled(); entry = last.next()) {
+            if (!changed.hasAncestorOrSelf(entry[0])) {
+                scan.infos.traverse();
+                Resource resource = resolver.getResource(entry[0]);
+                if (resource != null && isObsolete(scan, resource)) {
+                    scan.obsolete(resource.getPath(), resource.getResourceType());
+                    obsolete.add(resource.getPath());
                 }
             }
         }
+        logger.info("{} subtrees of {} changed since {}", new Object[] {changed.size(), root.getPath(), new Date(last.getTime())});
+        for (String path : changed.paths()) {
+            if (scan.infos.isCancelled()) {
+                break;
+            }
+            Resource subtree = obsolete.hasAncestorOrSelf(path) ? null : resolver.getResource(path);
+            if (subtree != null) {
+                traverse(scan, subtree, new TypeCleanupOptions(), null);
+            }
+        }
     }
 
-    @Override
-    public boolean isConfigured() {
-        return checkedResourceTypes != null && !checkedResourceTypes.isEmpty();
+    /**
+     * @param root
+     * @param since
+     * @return resources under root that one of the change markers dates after a given time
+     */
+    protected Iterator<Resource> findChangedResources(Resource root, long since) {
+        if (changeMarkers.isEmpty()) {
+            return Collections.<Resource>emptyList().iterator();
+        }
+        return root.getResourceResolver().findResources(buildChangeQuery(root.getPath(), changeMarkers, since), Query.JCR_SQL2);
     }
 
     /**
-     * Check if a resource type exists with a checkResolver's session (resource's session
-     * might not have read access to the resource type)
-     * @param checkResolver
-     * @param resource
-     * @return
+     * @param rootPath
+     * @param markers date properties marking changes
+     * @param since
+     * @return JCR-SQL2 query of resources under root path one of the markers dates after a given time
      */
-    protected boolean resourceTypeExists(ResourceResolver checkResolver, Resource resource){
-        return (checkResolver.getResource(resource.getResourceType()) != null);
+    static String buildChangeQuery(String rootPath, List<String> markers, long since) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String date = format.format(new Date(since));
+        StringBuilder query = new StringBuilder("SELECT * FROM [nt:base] AS resource WHERE ISDESCENDANTNODE(resource, '")
+                .append(rootPath.replace("'", "''")).append("') AND (");
+        for (int i = 0; i < markers.size(); i++) {
+            if (i > 0) {
+                query.append(" OR ");
+            }
+            query.append("resource.[").append(markers.get(i)).append("] > CAST('").append(date).append("' AS DATE)");
+        }
+        return query.append(")").toString();
     }
 
     /**
-     * Is this resource type included in the check?
-     * @param resourceType
-     * @return
+     * @param rootPath
+     * @param prefix
+     * @return JCR-SQL2 query of resources under root path whose type starts with prefix
      */
-    protected boolean isTypeIncluded(String resourceType){
-        boolean included = false;
-        if (StringUtils.isNotBlank(resourceType)) {
-            for (String prefix : checkedResourceTypes) {
-                if (resourceType.startsWith(prefix)){
-                    included = true;
-                    break;
-                }
+    static String buildTypeQuery(String rootPath, String prefix) {
+        String escapedPrefix = prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        return "SELECT * FROM [nt:base] AS resource WHERE ISDESCENDANTNODE(resource, '" + rootPath.replace("'", "''")
+                + "') AND resource.[" + PN_RESOURCE_TYPE + "] LIKE '" + escapedPrefix.replace("'", "''") + "%'";
+    }
+
+    @Override
+    public TypeCleanupInfo buildCleanupInfo(Resource root) throws Exception {
+        return buildCleanupInfo(root, new TypeCleanupOptions());
+    }
+
+    @Override
+    public TypeCleanupInfo buildCleanupInfo(Resource root, TypeCleanupOptions options) throws Exception {
+        if (root == null) {
+            logger.error("Unable to properly retrieve the paths: no resource to scan");
+            return newCleanupInfo(options.getListener());
+        }
+        ScanReport report = newReport(options, root.getPath());
+        TypeCleanupInfo infos = newCleanupInfo(options, report);
+        boolean complete = false;
+        try {
+            coalesce(infos, root.getResourceResolver(), Collections.singletonList(root), options);
+            complete = !infos.isCancelled();
+        } catch (Exception e){
+            logger.error("Unable to properly retrieve the paths", e);
+        } finally {
+            completeReport(infos, report, complete);
+        }
+        return infos;
+    }
+
+    @Override
+    public TypeCleanupInfo buildCleanupInfo(ResourceResolver resolver, String[] paths, TypeCleanupOptions options) throws Exception {
+        List<String> rootPaths = normalizeRoots(paths);
+        if (rootPaths.size() > 1 && options.isPartial()) {
+            throw new IllegalArgumentException("a scan of several roots can't be partial");
+        }
+        ScanReport report = newReport(options, StringUtils.join(rootPaths, ","));
+        TypeCleanupInfo infos = newCleanupInfo(options, report);
+        List<Resource> roots = new ArrayList<Resource>();
+        for (String rootPath : rootPaths) {
+            Resource root = resolver.getResource(rootPath);
+            if (root != null) {
+                roots.add(root);
+            } else {
+                infos.addIgnoredPath(rootPath);
             }
-            if (included){
-                for (String prefix : excludedResourceTypes) {
-                    if (resourceType.startsWith(prefix)){
-                        return false;
-                    }
-                }
+        }
+        boolean complete = false;
+        try {
+            coalesce(infos, resolver, roots, options);
+            complete = !infos.isCancelled();
+        } catch (Exception e){
+            logger.error("Unable to properly retrieve the paths", e);
+        } finally {
+            completeReport(infos, report, complete);
+        }
+        return infos;
+    }
+
+    /**
+     * publishes the report of a scan that completed, and drops the one of a scan that failed or has been cancelled
+     * @param infos wrapper of the scan's results
+     * @param report report of the scan, null if there is none
+     * @param complete true if the scan completed
+     */
+    void completeReport(TypeCleanupInfo infos, ScanReport report, boolean complete) {
+        if (report == null) {
+            return;
+        }
+        if (complete) {
+            report.close();
+        } else {
+            report.abort();
+            infos.setReportId(null);
+        }
+    }
+
+    /**
+     * scans trees, unless the same scan is in flight already, i.e. of the same trees, with the same options
+     * and configuration, for the same user, in which case the request attaches to that scan and gets its results.
+     * The scan runs on the thread of the request that started it, requests attaching later taking its results
+     * on their own thread
+     * @param infos wrapper results are collected in
+     * @param resolver resolver of the user the scan is for
+     * @param roots non overlapping roots
+     * @param options
+     * @throws Exception
+     */
+    protected void coalesce(TypeCleanupInfo infos, ResourceResolver resolver, List<Resource> roots, TypeCleanupOptions options)
+            throws Exception {
+        String key = flightKey(resolver, roots, options);
+        CoalescedScan flight = new CoalescedScan(infos);
+        CoalescedScan running = flights.putIfAbsent(key, flight);
+        if (running != null) {
+            CoalescedScan.Attachment attachment = running.attach(infos);
+            if (attachment != null) {
+                logger.info("attaching to the scan in flight of {}", key);
+                running.await(attachment);
+            } else {
+                collect(infos, roots, options);
             }
+            return;
+        }
+        Exception error = null;
+        try {
+            collect(flight.getScan(), roots, options);
+        } catch (Exception e) {
+            error = e;
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+            flight.complete(error);
         }
-        return included;
+        infos.mergeCounts(flight.getScan());
     }
 
     /**
-     * test if resource's type belongs to the patterns to check and doesn't exist,
-     * @param resource
-     * @return
+     * @param resolver
+     * @param roots
+     * @param options
+     * @return key of a scan, identical scans sharing the same key
      */
-    protected boolean isObsolete(Resource resource){
-        return isTypeIncluded(resource.getResourceType()) && !resourceTypeExists(resource.getResourceResolver(), resource);
+    String flightKey(ResourceResolver resolver, List<Resource> roots, TypeCleanupOptions options) {
+        StringBuilder key = new StringBuilder(String.valueOf(resolver.getUserID()));
+        for (Resource root : roots) {
+            key.append(',').append(root.getPath());
+        }
+        ResourceTypeMatcher current = matcher;
+        return key.append(' ').append(options.getStrategy()).append(' ').append(options.getResumePath())
+                .append(' ').append(options.getMaxResources()).append(' ').append(current.getInclusions())
+                .append(' ').append(current.getExclusions()).toString();
     }
 
     /**
-     * traverses the resource tree recursively and lists obsolete paths as follow:
-     * - if resource is obsolete, adds it to the list.
-     * - other wise look at children and re-iterate.
-     * @param infos
-     * @param checker
-     * @param resource
-     * @return
+     * @param paths root paths, possibly blank, overlapping or with a trailing slash
+     * @return topmost paths, in hierarchical order
      */
-    protected void collectObsoletePaths(final TypeCleanupInfo infos, ResourceResolver checker, Resource resource){
-        infos.traverse();
-        if (isObsolete(resource)){
-            infos.add(resource.getPath());
-        } else {
-            for (Iterator<Resource> childIterator = resource.listChildren(); childIterator.hasNext(); ){
-                collectObsoletePaths(infos, checker, childIterator.next());
+    static List<String> normalizeRoots(String[] paths) {
+        TopmostPaths roots = new TopmostPaths();
+        for (String path : paths) {
+            String root = StringUtils.trimToEmpty(path);
+            while (root.length() > 1 && root.endsWith("/")) {
+                root = root.substring(0, root.length() - 1);
+            }
+            if (root.startsWith("/")) {
+                roots.add(root);
             }
         }
+        return new ArrayList<String>(roots.paths());
     }
 
-    @Override
-    public TypeCleanupInfo buildCleanupInfo(Resource root) {
-        TypeCleanupInfo infos = new TypeCleanupInfo();
+    /**
+     * scans a tree for obsolete resources with the requested strategy, in parallel if configured so
+     * @param infos wrapper results are collected in, that can be cancelled
+     * @param root
+     * @param options
+     * @throws Exception
+     */
+    protected void collect(TypeCleanupInfo infos, Resource root, TypeCleanupOptions options) throws Exception {
+        collect(infos, Collections.singletonList(root), options);
+    }
+
+    /**
+     * scans trees one after the other with the requested strategy, with the same checker resolver and
+     * type cache, recording counts of each tree in the wrapper
+     * @param infos wrapper results are collected in, that can be cancelled
+     * @param roots non overlapping roots
+     * @param options
+     * @throws Exception
+     */
+    protected void collect(TypeCleanupInfo infos, List<Resource> roots, TypeCleanupOptions options) throws Exception {
         ResourceResolver checker = null;
+        ScanContext scan = null;
+        long start = System.currentTimeMillis();
+        boolean failed = true;
+        stats.scanStarted();
         try {
             if (isConfigured()) {
-                checker = factory.getAdministrativeResourceResolver(null);
-                collectObsoletePaths(infos, checker, root);
+                ExecutorService executor = scanExecutor;
+                ObsoleteIndex currentIndex = index;
+                for (Resource root : roots) {
+                    if (infos.isCancelled()) {
+                        break;
+                    }
+                    long nbResourceParsed = infos.getNbResourceParsed();
+                    long nbObsolete = infos.getNbObsolete();
+                    if (options.getStrategy() == TypeCleanupOptions.Strategy.INDEX && currentIndex != null
+                            && currentIndex.answer(root, infos)) {
+                        logger.info("{} obsolete resources under {} answered from index", infos.getNbObsolete() - nbObsolete, root.getPath());
+                        infos.addRoot(root.getPath(), 0, infos.getNbObsolete() - nbObsolete);
+                        continue;
+                    }
+                    if (scan == null) {
+                        checker = acquireChecker();
+                        scan = newScanContext(infos, checker);
+                    }
+                    if (options.getStrategy() == TypeCleanupOptions.Strategy.QUERY) {
+                        queryObsoletePaths(scan, root);
+                    } else if (options.getStrategy() == TypeCleanupOptions.Strategy.INCREMENTAL && !options.isPartial()) {
+                        incrementalScan(scan, root, executor);
+                    } else {
+                        traverse(scan, root, options, executor);
+                    }
+                    if (options.getStrategy() != TypeCleanupOptions.Strategy.QUERY && options.getStrategy() != TypeCleanupOptions.Strategy.INCREMENTAL
+                            && !options.isPartial() && !infos.isCancelled()) {
+                        synchronized (scanSizes) {
+                            scanSizes.put(root.getPath(), infos.getNbResourceParsed() - nbResourceParsed);
+                        }
+                    }
+                    infos.addRoot(root.getPath(), infos.getNbResourceParsed() - nbResourceParsed, infos.getNbObsolete() - nbObsolete);
+                }
+                long duration = Math.max(1, System.currentTimeMillis() - start);
+                logger.info("{} resources traversed under {} roots at {} resources/s, type cache: {} hits, {} misses",
+                        new Object[] {infos.getNbResourceParsed(), roots.size(), infos.getNbResourceParsed() * 1000 / duration,
+                                infos.getNbTypeCacheHits(), infos.getNbTypeCacheMisses()});
+                if (visitThrottle.isActive()) {
+                    logger.info("visits throttled, current back-off {} ms", visitThrottle.getBackOff());
+                }
             }
-        } catch (Exception e){
-            logger.error("Unable to properly retrieve the paths", e);
+            failed = false;
         } finally {
+            if (scan != null) {
+                scan.flushStats();
+            }
+            stats.scanFinished(failed);
             if (checker != null){
-                checker.close();
+                releaseChecker(checker);
             }
         }
-        return infos;
+    }
+
+    @Override
+    public TypeInventory buildInventory(Resource root) throws Exception {
+        TypeInventory inventory = new TypeInventory();
+        ResourceResolver checker = null;
+        long start = System.currentTimeMillis();
+        ScanContext scan = null;
+        boolean failed = true;
+        stats.scanStarted();
+        try {
+            checker = acquireChecker();
+            scan = newScanContext(new TypeCleanupInfo(), checker);
+            Node node = jcrTraversal ? root.adaptTo(Node.class) : null;
+            if (node != null) {
+                JcrNodeCursor cursor = new JcrNodeCursor(node, null);
+                for (Node item = scan.next(cursor); item != null; item = scan.next(cursor)) {
+                    inventory.add(item.hasProperty(PN_RESOURCE_TYPE) ? item.getProperty(PN_RESOURCE_TYPE).getString() : null, item.getPath());
+                }
+            } else {
+                ResourceCursor cursor = new ResourceCursor(root, null);
+                for (Resource resource = scan.next(cursor); resource != null; resource = scan.next(cursor)) {
+                    inventory.add(explicitResourceTypeOf(resource), resource.getPath());
+                }
+            }
+            for (int index = 0; index < inventory.size(); index++) {
+                if (!TypeInventory.UNTYPED.equals(inventory.getResourceType(index))) {
+                    inventory.setExisting(index, resourceTypeExists(scan, inventory.getResourceType(index)));
+                }
+            }
+            logger.info("{} resources of {} types inventoried under {} in {} ms", new Object[] {inventory.getNbResourceParsed(),
+                    inventory.size(), root.getPath(), System.currentTimeMillis() - start});
+            failed = false;
+        } finally {
+            if (scan != null) {
+                scan.flushStats();
+            }
+            stats.scanFinished(failed);
+            if (checker != null) {
+                releaseChecker(checker);
+            }
+        }
+        return inventory;
+    }
+
+    /**
+     * @param resource
+     * @return resource type of the resource, null if it only defaults to its node type
+     */
+    static String explicitResourceTypeOf(Resource resource) {
+        String resourceType = resource.getResourceType();
+        if (resourceType == null || resourceType.equals(ResourceUtil.getValueMap(resource).get(PN_PRIMARY_TYPE, String.class))) {
+            return null;
+        }
+        return resourceType;
+    }
+
+    @Override
+    public TypeInventory.Evaluation evaluate(TypeInventory inventory, String[] inclusions, String[] exclusions) {
+        List<String> candidateInclusions = nonBlank(inclusions);
+        List<String> candidateExclusions = nonBlank(exclusions);
+        ResourceTypeMatcher candidate = new ResourceTypeMatcher(candidateInclusions, candidateExclusions);
+        TypeInventory.Evaluation evaluation = new TypeInventory.Evaluation(candidateInclusions, candidateExclusions);
+        for (int index = 0; index < inventory.size(); index++) {
+            String resourceType = inventory.getResourceType(index);
+            if (!TypeInventory.UNTYPED.equals(resourceType) && candidate.isIncluded(resourceType)) {
+                evaluation.addIncluded(resourceType, inventory.getCount(index), inventory.isExisting(index));
+            }
+        }
+        return evaluation;
+    }
+
+    /**
+     * @param values
+     * @return trimmed values that are not blank
+     */
+    private static List<String> nonBlank(String[] values) {
+        List<String> list = new ArrayList<String>();
+        if (values != null) {
+            for (String value : values) {
+                if (StringUtils.isNotBlank(value)) {
+                    list.add(value.trim());
+                }
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public TypeCleanupJob submit(ResourceResolver resolver, String path, TypeCleanupOptions options) throws Exception {
+        long expectedResources = 0;
+        synchronized (scanSizes) {
+            Long size = scanSizes.get(path);
+            if (size != null) {
+                expectedResources = size;
+            }
+        }
+        ResourceResolver jobResolver = resolver.clone(null);
+        ScanJob job = new ScanJob(this, jobResolver, path, options, expectedResources);
+        synchronized (jobs) {
+            ExecutorService executor = jobExecutor;
+            try {
+                if (executor == null) {
+                    throw new RejectedExecutionException("service is not active");
+                }
+                executor.execute(job);
+            } catch (RejectedExecutionException e) {
+                jobResolver.close();
+                job.dispose();
+                throw e;
+            }
+            jobs.put(job.getId(), job);
+            Iterator<ScanJob> retained = jobs.values().iterator();
+            for (int nbFinished = countFinishedJobs(); nbFinished > maxRetainedJobs && retained.hasNext(); ) {
+                ScanJob candidate = retained.next();
+                if (candidate.getState().isFinished()) {
+                    retained.remove();
+                    candidate.dispose();
+                    nbFinished--;
+                }
+            }
+        }
+        logger.info("submitted scan job {} on {}", job.getId(), path);
+        return job;
+    }
+
+    private int countFinishedJobs() {
+        int nbFinished = 0;
+        for (ScanJob job : jobs.values()) {
+            if (job.getState().isFinished()) {
+                nbFinished++;
+            }
+        }
+        return nbFinished;
+    }
+
+    @Override
+    public TypeCleanupJob getJob(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    @Override
+    public boolean cancel(String id) {
+        ScanJob job;
+        synchronized (jobs) {
+            job = jobs.get(id);
+        }
+        return job != null && job.cancel();
     }
 
     @Override
     public TypeCleanupInfo buildCleanupInfo(String[] paths) {
-        TypeCleanupInfo infos = new TypeCleanupInfo();
+        return buildCleanupInfo(Arrays.asList(paths).iterator(), new TypeCleanupOptions());
+    }
+
+    @Override
+    public TypeCleanupInfo buildCleanupInfo(Iterator<String> paths, TypeCleanupOptions options) {
+        // obsolete paths are kept for a batch listener, validation being followed by their removal
+        TypeCleanupBatchListener batchListener = options.getListener() instanceof TypeCleanupBatchListener
+                ? (TypeCleanupBatchListener) options.getListener() : null;
+        TypeCleanupInfo infos = newCleanupInfo(batchListener != null ? null : options.getListener());
         ResourceResolver checker = null;
         try {
             if (isConfigured()) {
-                checker = factory.getAdministrativeResourceResolver(null);
-                for (String path : paths){
-                    infos.traverse();
-                    Resource resource = checker.getResource(path.trim());
-                    if (resource != null && isObsolete(resource)){
-                        infos.add(resource.getPath());
-                    } else {
-                        infos.addIgnoredPath(path);
+                checker = acquireChecker();
+                ScanContext scan = newScanContext(infos, checker);
+                TopmostPaths obsoletePaths = new TopmostPaths();
+                Set<String> batch = new TreeSet<String>(TopmostPaths.HIERARCHICAL);
+                while (paths.hasNext() && !infos.isCancelled()) {
+                    String path = StringUtils.trimToEmpty(paths.next());
+                    if (path.length() > 0) {
+                        batch.add(path);
+                    }
+                    if (batch.size() >= VALIDATION_BATCH_SIZE || !paths.hasNext()) {
+                        validatePaths(scan, batch, obsoletePaths, batchListener);
+                        batch.clear();
                     }
                 }
+                scan.flushStats();
             }
         } catch (Exception e){
             logger.error("Unable to properly retrieve the paths", e);
         } finally {
             if (checker != null){
-                checker.close();
+                releaseChecker(checker);
             }
         }
         return infos;
     }
 
+    /**
+     * validates a batch of submitted paths in hierarchical order, dropping paths found obsolete already,
+     * in this batch or a previous one, and their descendants
+     * @param scan
+     * @param batch deduplicated paths, in hierarchical order
+     * @param obsoletePaths paths found obsolete so far
+     * @param listener listener obsolete paths are passed to as well as kept, and told once the batch is validated, null if none
+     */
+    protected void validatePaths(ScanContext scan, Set<String> batch, TopmostPaths obsoletePaths, TypeCleanupBatchListener listener) {
+        List<String> ignoredPaths = new ArrayList<String>();
+        for (String path : batch) {
+            if (obsoletePaths.hasAncestorOrSelf(path)) {
+                continue;
+            }
+            scan.infos.traverse();
+            Resource resource = scan.checker.getResource(path);
+            if (resource != null && isObsolete(scan, resource)){
+                scan.infos.add(resource.getPath(), resource.getResourceType());
+                obsoletePaths.add(resource.getPath());
+                if (listener != null) {
+                    listener.obsolete(resource.getPath(), resource.getResourceType());
+                }
+            } else {
+                scan.infos.addIgnoredPath(path);
+                if (listener != null) {
+                    ignoredPaths.add(path);
+                }
+            }
+        }
+        if (listener != null) {
+            listener.validated(batch.size(), ignoredPaths);
+        }
+    }
+
+    /**
+     * @param resolver
+     * @param infos
+     * @return remover committing with configured bounds, retries and pauses
+     */
+    protected BatchRemover newBatchRemover(ResourceResolver resolver, TypeCleanupInfo infos) {
+        return new BatchRemover(resolver, infos, cleanupBatchSize, cleanupCommitTarget, cleanupRetries, cleanupRetryDelay, cleanupPause, deleteThrottle, stats);
+    }
 
     @Override
     public void cleanup(ResourceResolver resolver, TypeCleanupInfo infos) throws RepositoryException {
-        logger.info("Starting to remove {} obsolete resources", infos.getPaths().size());
+        logger.info("Starting to remove {} obsolete resources", infos.getNbObsolete());
+        ExecutorService executor = cleanupExecutor;
+        if (executor != null) {
+            int failed = new PartitionedCleanup(this, executor, cleanupParallelism).run(resolver, infos);
+            if (failed > 0) {
+                logger.warn("{} partitions failed, {} nodes removed in {} commits", new Object[] {failed, infos.getNbRemoved(), infos.getBatches().size()});
+            } else {
+                logger.info("done, {} nodes removed in {} commits", infos.getNbRemoved(), infos.getBatches().size());
+            }
+            return;
+        }
         Session session = resolver.adaptTo(Session.class);
+        BatchRemover remover = newBatchRemover(resolver, infos);
         try {
-            for (int pathIndex = 0; pathIndex < infos.getPaths().size(); pathIndex ++){
-                String path = infos.getPaths().get(pathIndex);
-                Resource resource = resolver.getResource(path);
-                Node node = resource != null ? resource.adaptTo(Node.class) : null;
-                if (node != null){
-                    node.remove();
-                    if (pathIndex % 1000 == 0){
-                        logger.info("persisting changes...");
-                        session.save();
-                    }
-                }
+            for (String path : infos.getPaths()){
+                remover.remove(path);
             }
-            if (session.hasPendingChanges()){
-                logger.info("persisting changes...");
-                session.save();
+            remover.commit();
+            logger.info("done, {} nodes removed in {} commits", infos.getNbRemoved(), infos.getBatches().size());
+        } finally {
+            session.refresh(false);
+        }
+    }
+
+    @Override
+    public TypeCleanupInfo cleanup(ResourceResolver resolver, String reportId, TypeCleanupListener listener) throws Exception {
+        ScanReport.Reader reader = openReport(reportId);
+        TypeCleanupInfo infos = newCleanupInfo(listener);
+        ResourceResolver checker = null;
+        Session session = resolver.adaptTo(Session.class);
+        try {
+            logger.info("Starting to remove obsolete resources of report {}", reportId);
+            checker = acquireChecker();
+            ScanContext scan = newScanContext(infos, checker);
+            BatchRemover remover = newBatchRemover(resolver, infos);
+            for (String[] entry = reader.next(); entry != null; entry = reader.next()) {
+                infos.traverse();
+                Resource resource = resolver.getResource(entry[0]);
+                if (resource != null && isObsolete(scan, resource)) {
+                    infos.add(entry[0], resource.getResourceType());
+                    remover.remove(entry[0]);
+                } else {
+                    infos.addIgnoredPath(entry[0]);
+                }
             }
-            logger.info("done");
+            scan.flushStats();
+            remover.commit();
+            logger.info("done, {} nodes removed in {} commits", infos.getNbRemoved(), infos.getBatches().size());
         } finally {
+            reader.close();
+            if (checker != null) {
+                releaseChecker(checker);
+            }
             session.refresh(false);
         }
+        return infos;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.typecleanup.impl;
+
+import org.apache.sling.typecleanup.TypeCleanupStatsMBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * statistics the service gathers while scanning and cleaning up, scans adding their counts in bulk (see {@link ScanStats})
+ */
+class TypeCleanupStats implements TypeCleanupStatsMBean {
+
+    /**
+     * maximum number of missing types obsolete hits are counted for, further ones being counted together
+     */
+    static final int MAX_TYPES = 1000;
+
+    static final String OTHER_TYPES = "(other)";
+
+    private final AtomicLong nodesVisited = new AtomicLong();
+
+    private final Histogram typeLookupLatency = new Histogram();
+
+    private final AtomicLong inclusionChecks = new AtomicLong();
+
+    /**
+     * time of sampled inclusion checks
+     */
+    private final Histogram inclusionCheckTime = new Histogram();
+
+    private final AtomicLong typeCacheHits = new AtomicLong();
+
+    private final AtomicLong typeCacheMisses = new AtomicLong();
+
+    private final ConcurrentMap<String, AtomicLong> obsoleteHits = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final Histogram saveLatency = new Histogram();
+
+    private final Histogram batchSize = new Histogram();
+
+    private final AtomicLong saveConflicts = new AtomicLong();
+
+    private final AtomicLong nodesRemoved = new AtomicLong();
+
+    private final AtomicInteger activeScans = new AtomicInteger();
+
+    private final AtomicLong completedScans = new AtomicLong();
+
+    private final AtomicLong failedScans = new AtomicLong();
+
+    private long lastRateTime = System.nanoTime();
+
+    private long lastRateCount;
+
+    private double lastRate;
+
+    void typeLookup(long latency) {
+        typeLookupLatency.update(latency);
+    }
+
+    void inclusionCheck(long time) {
+        inclusionCheckTime.update(time);
+    }
+
+    /**
+     * adds counts a scan gathered
+     * @param visited
+     * @param hits type cache hits
+     * @param misses type cache misses
+     * @param checks inclusion checks
+     * @param obsolete obsolete hits per missing type
+     */
+    void add(long visited, long hits, long misses, long checks, Map<String, long[]> obsolete) {
+        nodesVisited.addAndGet(visited);
+        typeCacheHits.addAndGet(hits);
+        typeCacheMisses.addAndGet(misses);
+        inclusionChecks.addAndGet(checks);
+        for (Map.Entry<String, long[]> entry : obsolete.entrySet()) {
+            AtomicLong typeHits = obsoleteHits.get(entry.getKey());
+            if (typeHits == null) {
+                String key = obsoleteHits.size() < MAX_TYPES ? entry.getKey() : OTHER_TYPES;
+                obsoleteHits.putIfAbsent(key, new AtomicLong());
+                typeHits = obsoleteHits.get(key);
+            }
+            typeHits.addAndGet(entry.getValue()[0]);
+        }
+    }
+
+    void saved(int nodes, long latency) {
+        saveLatency.update(latency);
+        batchSize.update(nodes);
+        nodesRemoved.addAndGet(nodes);
+    }
+
+    void saveConflict() {
+        saveConflicts.incrementAndGet();
+    }
+
+    void scanStarted() {
+        activeScans.incrementAndGet();
+    }
+
+    void scanFinished(boolean failed) {
+        activeScans.decrementAndGet();
+        completedScans.incrementAndGet();
+        if (failed) {
+            failedScans.incrementAndGet();
+        }
+    }
+
+    @Override
+    public long getNodesVisited() {
+        return nodesVisited.get();
+    }
+
+    @Override
+    public synchronized double getNodesVisitedPerSecond() {
+        long now = System.nanoTime();
+        if (now - lastRateTime >= TimeUnit.SECONDS.toNanos(1)) {
+            long count = nodesVisited.get();
+            lastRate = (count - lastRateCount) * (double) TimeUnit.SECONDS.toNanos(1) / (now - lastRateTime);
+            lastRateCount = count;
+            lastRateTime = now;
+        }
+        return lastRate;
+    }
+
+    @Override
+    public long getTypeLookups() {
+        return typeLookupLatency.getCount();
+    }
+
+    @Override
+    public double getTypeLookupLatencyMeanMicros() {
+        return typeLookupLatency.getMean() / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    @Override
+    public long getTypeLookupLatency95thMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(typeLookupLatency.getPercentile(0.95));
+    }
+
+    @Override
+    public long getTypeLookupLatencyMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(typeLookupLatency.getMax());
+    }
+
+    @Override
+    public long getInclusionChecks() {
+        return inclusionChecks.get();
+    }
+
+    @Override
+    public double getInclusionCheckTimeMeanNanos() {
+        return inclusionCheckTime.getMean();
+    }
+
+    @Override
+    public long getInclusionCheckTime95thNanos() {
+        return inclusionCheckTime.getPercentile(0.95);
+    }
+
+    @Override
+    public long getTypeCacheHits() {
+        return typeCacheHits.get();
+    }
+
+    @Override
+    public long getTypeCacheMisses() {
+        return typeCacheMisses.get();
+    }
+
+    @Override
+    public double getTypeCacheHitRatio() {
+        long hits = typeCacheHits.get();
+        long total = hits + typeCacheMisses.get();
+        return total > 0 ? hits / (double) total : 0;
+    }
+
+    @Override
+    public String[] getObsoleteHitsPerType() {
+        List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>(obsoleteHits.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+            @Override
+            public int compare(Map.Entry<String, AtomicLong> entry1, Map.Entry<String, AtomicLong> entry2) {
+                long hits1 = entry1.getValue().get();
+                long hits2 = entry2.getValue().get();
+                return hits1 > hits2 ? -1 : hits1 == hits2 ? entry1.getKey().compareTo(entry2.getKey()) : 1;
+            }
+        });
+        String[] hits = new String[entries.size()];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = entries.get(i).getKey() + "=" + entries.get(i).getValue().get();
+        }
+        return hits;
+    }
+
+    @Override
+    public long getSaves() {
+        return saveLatency.getCount();
+    }
+
+    @Override
+    public long getSaveConflicts() {
+        return saveConflicts.get();
+    }
+
+    @Override
+    public double getSaveLatencyMeanMillis() {
+        return saveLatency.getMean() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public long getSaveLatency95thMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(saveLatency.getPercentile(0.95));
+    }
+
+    @Override
+    public long getSaveLatencyMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(saveLatency.getMax());
+    }
+
+    @Override
+    public double getBatchSizeMean() {
+        return batchSize.getMean();
+    }
+
+    @Override
+    public long getBatchSizeMax() {
+        return batchSize.getMax();
+    }
+
+    @Override
+    public long getNodesRemoved() {
+        return nodesRemoved.get();
+    }
+
+    @Override
+    public int getActiveScans() {
+        return activeScans.get();
+    }
+
+    @Override
+    public long getCompletedScans() {
+        return completedScans.get();
+    }
+
+    @Override
+    public long getFailedScans() {
+        return failedScans.get();
+    }
+
+    @Override
+    public synchronized void reset() {
+        nodesVisited.set(0);
+        typeLookupLatency.reset();
+        inclusionChecks.set(0);
+        inclusionCheckTime.reset();
+        typeCacheHits.set(0);
+        typeCacheMisses.set(0);
+        obsoleteHits.clear();
+        saveLatency.reset();
+        batchSize.reset();
+        saveConflicts.set(0);
+        nodesRemoved.set(0);
+        completedScans.set(0);
+        failedScans.set(0);
+        lastRateCount = 0;
+        lastRateTime = System.nanoTime();
+        lastRate = 0;
+    }
+}
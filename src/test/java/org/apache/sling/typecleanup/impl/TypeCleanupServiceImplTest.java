@@ -1,16 +1,46 @@
 package org.apache.sling.typecleanup.impl;
 
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.testing.mock.jcr.MockJcr;
+import org.apache.sling.testing.mock.jcr.MockQuery;
+import org.apache.sling.testing.mock.jcr.MockQueryResult;
+import org.apache.sling.testing.mock.jcr.MockQueryResultHandler;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
 import org.apache.sling.testing.mock.sling.junit.SlingContext;
 import org.apache.sling.testing.mock.sling.loader.ContentLoader;
+import org.apache.sling.typecleanup.PathList;
+import org.apache.sling.typecleanup.TypeCleanupBatchListener;
 import org.apache.sling.typecleanup.TypeCleanupInfo;
+import org.apache.sling.typecleanup.TypeCleanupListener;
+import org.apache.sling.typecleanup.TypeCleanupJob;
+import org.apache.sling.typecleanup.TypeCleanupOptions;
+import org.apache.sling.typecleanup.TypeInventory;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.osgi.service.event.Event;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * unit testing TypeCleanup Service
@@ -26,8 +56,10 @@ public class TypeCleanupServiceImplTest {
     @Before
     public void init() {
         service = new TypeCleanupServiceImpl();
-        service.checkedResourceTypes = Arrays.asList(new String[] {"/apps/blah","/libs"});
-        service.excludedResourceTypes = Arrays.asList(new String[] {"/apps/blah/ignored", "/libs/ignored"});
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, new String[] {"/apps/blah","/libs"});
+        properties.put(TypeCleanupServiceImpl.PROP_EXCLUSIONS_PREFIXES, new String[] {"/apps/blah/ignored", "/libs/ignored"});
+        service.setupLists(properties);
         resolver = context.resourceResolver();
         ContentLoader contentLoader = new ContentLoader(resolver);
         contentLoader.json("/contentloader/resourceTypes.json", "/apps");
@@ -37,10 +69,11 @@ public class TypeCleanupServiceImplTest {
     @Test
     public void testCleanupLists() {
         Map<String, Object> properties = new HashMap<String, Object>();
-        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS, new String[] {"","/apps/blah","", "/libs",""});
-        properties.put(TypeCleanupServiceImpl.PROP_EXCLUSIONS, new String[]{"", "/apps/blah/ignored", "", "/libs/ignored", ""});
-        Assert.assertEquals(2, service.checkedResourceTypes.size());
-        Assert.assertEquals(2, service.excludedResourceTypes.size());
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, new String[] {"","/apps/blah","", "/libs",""});
+        properties.put(TypeCleanupServiceImpl.PROP_EXCLUSIONS_PREFIXES, new String[]{"", "/apps/blah/ignored", "", "/libs/ignored", ""});
+        service.setupLists(properties);
+        Assert.assertEquals(2, service.matcher.getInclusions().size());
+        Assert.assertEquals(2, service.matcher.getExclusions().size());
     }
 
     @Test
@@ -53,6 +86,19 @@ public class TypeCleanupServiceImplTest {
         Assert.assertTrue("configured inclusion is included", service.isTypeIncluded("/libs"));
         Assert.assertTrue("descendants are included", service.isTypeIncluded("/apps/blah/foo"));
         Assert.assertTrue("descendants are included", service.isTypeIncluded("/libs/foo"));
+        Assert.assertTrue("prefixes are not bound to path segments", service.isTypeIncluded("/apps/blahblah"));
+        Assert.assertFalse("null type is ignored", service.isTypeIncluded(null));
+    }
+
+    @Test
+    public void testReconfigurationDuringScan() {
+        ScanContext scan = service.newScanContext(new TypeCleanupInfo(), resolver);
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, new String[] {"/apps/other"});
+        service.setupLists(properties);
+        Assert.assertTrue("running scan keeps its configuration", service.isObsolete(scan, resolver.getResource("/content/toClean/notexisting")));
+        Assert.assertFalse("new configuration is used afterwards", service.isTypeIncluded("/apps/blah/foo"));
+        Assert.assertEquals("exclusions are kept when not reconfigured", 2, service.matcher.getExclusions().size());
     }
 
     @Test
@@ -75,4 +121,907 @@ public class TypeCleanupServiceImplTest {
             Assert.assertEquals("The path should be the parent, i.e. /content/toClean/notexisting", "/content/toClean/notexisting", infos.getPaths().get(0));
         }
     }
+
+    @Test
+    public void testTypeCache() {
+        TypeCleanupInfo infos = new TypeCleanupInfo();
+        ScanContext scan = service.newScanContext(infos, resolver);
+        Resource obsolete = resolver.getResource("/content/toClean/notexisting");
+        Assert.assertTrue("resource is obsolete", service.isObsolete(scan, obsolete));
+        Assert.assertTrue("child is obsolete", service.isObsolete(scan, obsolete.getChild("notexistingChild")));
+        Assert.assertEquals("first check of a type should miss the cache", 1, infos.getNbTypeCacheMisses());
+        Assert.assertEquals("second check of the same type should hit the cache", 1, infos.getNbTypeCacheHits());
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(SlingConstants.PROPERTY_PATH, "/apps/blah/foo");
+        service.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_ADDED, properties));
+        service.isObsolete(scan, obsolete);
+        Assert.assertEquals("a change under /apps should invalidate the cache", 2, infos.getNbTypeCacheMisses());
+    }
+
+    @Test
+    public void testMergeWorkerInfos() {
+        TypeCleanupInfo infos = new TypeCleanupInfo();
+        TypeCleanupInfo worker = new TypeCleanupInfo();
+        service.collectObsoletePaths(worker, resolver, resolver.getResource("/content/toClean"));
+        service.collectObsoletePaths(infos, resolver, resolver.getResource("/content/toKeep"));
+        long traversed = infos.getNbResourceParsed() + worker.getNbResourceParsed();
+        infos.merge(worker);
+        Assert.assertEquals("traversal counts should add up", traversed, infos.getNbResourceParsed());
+        Assert.assertEquals("worker paths should be merged", 1, infos.getPaths().size());
+    }
+
+    @Test
+    public void testDeepTreeTraversal() throws PersistenceException {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("jcr:primaryType", "nt:unstructured");
+        Resource parent = resolver.getResource("/content");
+        for (int depth = 0; depth < 3000; depth++) {
+            parent = resolver.create(parent, "level", properties);
+        }
+        properties.put("sling:resourceType", "/apps/blah/deep");
+        resolver.create(parent, "obsolete", properties);
+        TypeCleanupInfo infos = new TypeCleanupInfo();
+        service.collectObsoletePaths(infos, resolver, resolver.getResource("/content"));
+        Assert.assertEquals("deep obsolete resource should be found along with sample one", 2, infos.getPaths().size());
+    }
+
+    @Test
+    public void testPauseAndResume() throws PersistenceException {
+        Resource content = resolver.getResource("/content");
+        TypeCleanupInfo full = new TypeCleanupInfo();
+        service.collectObsoletePaths(full, resolver, content);
+
+        List<String> paths = new ArrayList<String>();
+        long traversed = 0;
+        TypeCleanupOptions options = new TypeCleanupOptions();
+        options.setMaxResources(2);
+        do {
+            TypeCleanupInfo slice = new TypeCleanupInfo();
+            service.collectObsoletePaths(service.newScanContext(slice, resolver), content, options);
+            Assert.assertTrue("a slice should not traverse more than the maximum", slice.getNbResourceParsed() <= 2);
+            paths.addAll(slice.getPaths());
+            traversed += slice.getNbResourceParsed();
+            options.setResumePath(slice.getResumePath());
+        } while (options.getResumePath() != null);
+        Assert.assertEquals("resumed scans should find the same paths", full.getPaths(), paths);
+        Assert.assertEquals("resumed scans should traverse each resource once", full.getNbResourceParsed(), traversed);
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("jcr:primaryType", "nt:unstructured");
+        Resource gone = resolver.create(resolver.getResource("/"), "gone", properties);
+        resolver.create(gone, "child", properties);
+        resolver.delete(gone);
+        TypeCleanupOptions fromRoot = new TypeCleanupOptions();
+        fromRoot.setResumePath("/gone/child");
+        fromRoot.setMaxResources(1000);
+        TypeCleanupInfo resumed = new TypeCleanupInfo();
+        service.collectObsoletePaths(service.newScanContext(resumed, resolver), resolver.getResource("/"), fromRoot);
+        Assert.assertNull("scan of / resumed from a removed path should restart from its children, and complete", resumed.getResumePath());
+        Assert.assertTrue(resumed.getPaths().containsAll(full.getPaths()));
+    }
+
+    @Test
+    public void testStreamedPaths() {
+        final List<String> streamed = new ArrayList<String>();
+        TypeCleanupInfo infos = new TypeCleanupInfo(new TypeCleanupListener() {
+            @Override
+            public void obsolete(String path, String resourceType) {
+                streamed.add(path + ":" + resourceType);
+            }
+        });
+        service.collectObsoletePaths(infos, resolver, resolver.getResource("/content"));
+        Assert.assertEquals("obsolete path should be streamed with its type", "/content/toClean/notexisting:/apps/blah/foo", streamed.get(0));
+        Assert.assertEquals("streamed paths should be counted", 1, infos.getNbObsolete());
+        Assert.assertTrue("streamed paths should not be kept", infos.getPaths().isEmpty());
+    }
+
+    @Test
+    public void testTypeQuery() {
+        Assert.assertEquals("SELECT * FROM [nt:base] AS resource WHERE ISDESCENDANTNODE(resource, '/content/it''s') "
+                + "AND resource.[sling:resourceType] LIKE '/apps/my\\_app/it''s%'",
+                TypeCleanupServiceImpl.buildTypeQuery("/content/it's", "/apps/my_app/it's"));
+    }
+
+    @Test
+    public void testQueryStrategy() throws Exception {
+        Assert.assertEquals("inclusions covered by another one should not be queried", Arrays.asList(new String[] {"/apps/a", "/libs"}),
+                TypeCleanupServiceImpl.queryPrefixes(Arrays.asList(new String[] {"/apps/a", "/apps/a/b", "/libs", "/apps/a"})));
+
+        ResourceResolver shared = setupFactory();
+        ResourceResolver jcrResolver = MockSling.newResourceResolver(ResourceResolverType.JCR_MOCK);
+        ContentLoader contentLoader = new ContentLoader(jcrResolver);
+        contentLoader.json("/contentloader/resourceTypes.json", "/apps");
+        contentLoader.json("/contentloader/toClean.json", "/content");
+        jcrResolver.commit();
+        final Session session = jcrResolver.adaptTo(Session.class);
+        MockJcr.addQueryResultHandler(session, new MockQueryResultHandler() {
+            @Override
+            public MockQueryResult executeQuery(MockQuery query) {
+                String statement = query.getStatement();
+                String prefix = statement.substring(statement.indexOf("LIKE '") + 6, statement.lastIndexOf("%'"))
+                        .replace("''", "'").replace("\\_", "_").replace("\\%", "%").replace("\\\\", "\\");
+                List<Node> nodes = new ArrayList<Node>();
+                try {
+                    collectTyped(session.getNode("/content"), prefix, nodes);
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException(e);
+                }
+                return new MockQueryResult(nodes);
+            }
+        });
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, new String[] {"/apps/blah", "/apps/blah/exists", "/libs"});
+        service.setupLists(properties);
+        TypeCleanupInfo traversal = service.buildCleanupInfo(jcrResolver.getResource("/content"));
+        TypeCleanupOptions options = new TypeCleanupOptions();
+        options.setStrategy(TypeCleanupOptions.Strategy.QUERY);
+        TypeCleanupInfo query = service.buildCleanupInfo(jcrResolver.getResource("/content"), options);
+        Assert.assertEquals("query should find the topmost obsolete paths a traversal finds", traversal.getPaths(), query.getPaths());
+        Assert.assertEquals("only root and distinct candidates should be read", 4, query.getNbResourceParsed());
+        jcrResolver.close();
+        shared.close();
+    }
+
+    /**
+     * @param node
+     * @param prefix
+     * @param nodes nodes of the tree of node whose resource type starts with prefix, in pre-order
+     * @throws RepositoryException
+     */
+    private static void collectTyped(Node node, String prefix, List<Node> nodes) throws RepositoryException {
+        if (node.hasProperty(TypeCleanupServiceImpl.PN_RESOURCE_TYPE) && node.getProperty(TypeCleanupServiceImpl.PN_RESOURCE_TYPE).getString().startsWith(prefix)) {
+            nodes.add(node);
+        }
+        for (NodeIterator children = node.getNodes(); children.hasNext(); ) {
+            collectTyped(children.nextNode(), prefix, nodes);
+        }
+    }
+
+    @Test
+    public void testTopmostPaths() {
+        TopmostPaths paths = new TopmostPaths();
+        Assert.assertTrue(paths.add("/content/a/b"));
+        Assert.assertTrue(paths.add("/content/a-b"));
+        Assert.assertTrue("ancestor should replace its descendants", paths.add("/content/a"));
+        Assert.assertFalse("descendant should be ignored", paths.add("/content/a/c"));
+        Assert.assertFalse("path should be added once", paths.add("/content/a"));
+        Assert.assertEquals(Arrays.asList(new String[] {"/content/a", "/content/a-b"}), new ArrayList<String>(paths.paths()));
+    }
+
+    @Test
+    public void testCancelledScan() {
+        TypeCleanupInfo infos = new TypeCleanupInfo();
+        infos.cancel();
+        service.collectObsoletePaths(infos, resolver, resolver.getResource("/content"));
+        Assert.assertEquals("cancelled scan should stop", 0, infos.getNbResourceParsed());
+    }
+
+    @Test
+    public void testScanJobs() throws Exception {
+        ResourceResolver shared = setupFactory();
+        ResourceResolver jcrResolver = MockSling.newResourceResolver(ResourceResolverType.JCR_MOCK);
+        ContentLoader contentLoader = new ContentLoader(jcrResolver);
+        contentLoader.json("/contentloader/resourceTypes.json", "/apps");
+        contentLoader.json("/contentloader/toClean.json", "/content");
+        jcrResolver.commit();
+        TypeCleanupInfo expected = service.buildCleanupInfo(jcrResolver.getResource("/content"));
+        final Semaphore scanned = new Semaphore(0);
+        final Semaphore released = new Semaphore(0);
+        TypeCleanupServiceImpl blocking = new TypeCleanupServiceImpl() {
+            @Override
+            protected void collect(TypeCleanupInfo infos, Resource root, TypeCleanupOptions options) throws Exception {
+                // jobs stay running once their scan is done, until the test lets them finish
+                super.collect(infos, root, options);
+                scanned.release();
+                released.acquire();
+            }
+        };
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, new String[] {"/apps/blah","/libs"});
+        properties.put(TypeCleanupServiceImpl.PROP_JOBS_MAX, 1);
+        properties.put(TypeCleanupServiceImpl.PROP_JOBS_QUEUE, 1);
+        properties.put(TypeCleanupServiceImpl.PROP_JOBS_RETAINED, 1);
+        blocking.setupLists(properties);
+        blocking.setupJobs(properties);
+        blocking.factory = service.factory;
+        try {
+            TypeCleanupJob first = blocking.submit(jcrResolver, "/content", new TypeCleanupOptions());
+            Assert.assertSame("a submitted job should be found by its id", first, blocking.getJob(first.getId()));
+            Assert.assertTrue(scanned.tryAcquire(10, TimeUnit.SECONDS));
+            Assert.assertEquals(TypeCleanupJob.State.RUNNING, first.getState());
+            Assert.assertNull("results should not be available before the job is finished", first.getResult());
+            Assert.assertEquals("time left should be unknown without a previous scan", -1, first.getEta());
+
+            TypeCleanupJob second = blocking.submit(jcrResolver, "/content", new TypeCleanupOptions());
+            Assert.assertEquals("a job should wait for a free worker", TypeCleanupJob.State.QUEUED, second.getState());
+            try {
+                blocking.submit(jcrResolver, "/content", new TypeCleanupOptions());
+                Assert.fail("a job should be rejected once the queue is full");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+
+            released.release();
+            awaitFinished(first);
+            Assert.assertEquals(TypeCleanupJob.State.SUCCEEDED, first.getState());
+            Assert.assertNull(first.getError());
+            Assert.assertEquals(expected.getNbResourceParsed(), first.getNbResourceParsed());
+            Assert.assertEquals(new TreeSet<String>(expected.getPaths()), new TreeSet<String>(first.getResult().getPaths()));
+            Assert.assertEquals(0, first.getEta());
+
+            Assert.assertTrue(scanned.tryAcquire(10, TimeUnit.SECONDS));
+            Thread.sleep(10);
+            Assert.assertEquals(TypeCleanupJob.State.RUNNING, second.getState());
+            Assert.assertEquals("time left should be estimated from the previous scan of the same path", 0, second.getEta());
+            released.release();
+            awaitFinished(second);
+
+            TypeCleanupJob third = blocking.submit(jcrResolver, "/content", new TypeCleanupOptions());
+            Assert.assertNull("finished jobs beyond those retained should be evicted, oldest first", blocking.getJob(first.getId()));
+            Assert.assertSame("the latest finished jobs should be retained", second, blocking.getJob(second.getId()));
+            Assert.assertTrue(scanned.tryAcquire(10, TimeUnit.SECONDS));
+            Assert.assertTrue("a running job should be cancellable", blocking.cancel(third.getId()));
+            released.release();
+            awaitFinished(third);
+            Assert.assertEquals(TypeCleanupJob.State.CANCELLED, third.getState());
+            Assert.assertFalse("a finished job should not be cancellable", blocking.cancel(third.getId()));
+        } finally {
+            released.release(3);
+        }
+        jcrResolver.close();
+        shared.close();
+    }
+
+    private static void awaitFinished(TypeCleanupJob job) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!job.getState().isFinished() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("job " + job.getId() + " should finish", job.getState().isFinished());
+    }
+
+    @Test
+    public void testObsoleteIndex() throws Exception {
+        ObsoleteIndex index = new ObsoleteIndex(service, Arrays.asList(new String[] {"/content"}), null);
+        Assert.assertFalse("index without persisted file needs a bootstrap", index.open(resolver));
+        Assert.assertFalse("index can't answer before its bootstrap", index.answer(resolver.getResource("/content"), new TypeCleanupInfo()));
+        index.bootstrap(resolver);
+        TypeCleanupInfo infos = new TypeCleanupInfo();
+        Assert.assertTrue(index.answer(resolver.getResource("/content"), infos));
+        Assert.assertEquals("index should answer topmost obsolete paths", Arrays.asList(new String[] {"/content/toClean/notexisting"}), infos.getPaths());
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PN_RESOURCE_TYPE, "/apps/blah/bar");
+        resolver.create(resolver.getResource("/content/toKeep"), "added", properties);
+        index.contentChanged(SlingConstants.TOPIC_RESOURCE_ADDED, "/content/toKeep/added", null);
+        index.contentChanged(SlingConstants.TOPIC_RESOURCE_REMOVED, "/content/toClean", null);
+        infos = new TypeCleanupInfo();
+        index.answer(resolver.getResource("/content"), infos);
+        Assert.assertEquals("index should follow content changes", Arrays.asList(new String[] {"/content/toKeep/added"}), infos.getPaths());
+        Assert.assertFalse("index should not answer outside of its roots", index.answer(resolver.getResource("/apps"), new TypeCleanupInfo()));
+
+        index.start();
+        Map<String, Object> event = new HashMap<String, Object>();
+        event.put(SlingConstants.PROPERTY_PATH, "/content/toKeep/added");
+        index.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_REMOVED, event));
+        for (int i = 0; i < 100 && !infos.getPaths().isEmpty(); i++) {
+            Thread.sleep(50);
+            infos = new TypeCleanupInfo();
+            index.answer(resolver.getResource("/content"), infos);
+        }
+        Assert.assertTrue("queued events should be applied in the background", infos.getPaths().isEmpty());
+    }
+
+    @Test
+    public void testPersistedIndex() throws Exception {
+        ResourceResolver shared = setupFactory();
+        List<String> roots = Arrays.asList(new String[] {"/content"});
+        File file = File.createTempFile("typecleanup", ".index");
+        file.delete();
+        ObsoleteIndex index = new ObsoleteIndex(service, roots, file);
+        Assert.assertFalse(index.open(service.factory.getAdministrativeResourceResolver(null)));
+        index.bootstrap(shared);
+        index.close();
+
+        ObsoleteIndex reloaded = new ObsoleteIndex(service, roots, file);
+        Assert.assertTrue("index persisted for the same roots and types should be loaded", reloaded.open(service.factory.getAdministrativeResourceResolver(null)));
+        TypeCleanupInfo infos = new TypeCleanupInfo();
+        reloaded.answer(shared.getResource("/content"), infos);
+        Assert.assertEquals(Arrays.asList(new String[] {"/content/toClean/notexisting"}), infos.getPaths());
+        reloaded.close();
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("jcr:primaryType", "nt:unstructured");
+        shared.create(shared.getResource("/apps/blah"), "foo", properties);
+        shared.commit();
+        Map<String, Object> event = new HashMap<String, Object>();
+        event.put(SlingConstants.PROPERTY_PATH, "/apps/blah/foo");
+        service.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_ADDED, event));
+        reloaded = new ObsoleteIndex(service, roots, file);
+        Assert.assertTrue(reloaded.open(service.factory.getAdministrativeResourceResolver(null)));
+        infos = new TypeCleanupInfo();
+        reloaded.answer(shared.getResource("/content"), infos);
+        Assert.assertTrue("entries whose type has been defined meanwhile should be dropped on load", infos.getPaths().isEmpty());
+        reloaded.close();
+
+        properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, new String[] {"/apps"});
+        service.setupLists(properties);
+        ObsoleteIndex reconfigured = new ObsoleteIndex(service, roots, file);
+        Assert.assertFalse("index persisted for other types should not be loaded", reconfigured.open(service.factory.getAdministrativeResourceResolver(null)));
+        reconfigured.close();
+        file.delete();
+        shared.close();
+    }
+
+    @Test
+    public void testBatchedRemoval() throws Exception {
+        ResourceResolver jcrResolver = MockSling.newResourceResolver(ResourceResolverType.JCR_MOCK);
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("jcr:primaryType", "nt:unstructured");
+        Resource parent = jcrResolver.create(jcrResolver.getResource("/"), "big", properties);
+        for (int i = 0; i < 5; i++) {
+            Resource child = jcrResolver.create(parent, "child" + i, properties);
+            for (int j = 0; j < 4; j++) {
+                jcrResolver.create(child, "grandchild" + j, properties);
+            }
+        }
+        jcrResolver.create(jcrResolver.getResource("/"), "small", properties);
+        jcrResolver.commit();
+
+        TypeCleanupInfo infos = new TypeCleanupInfo();
+        BatchRemover remover = new BatchRemover(jcrResolver, infos, 10, 0, 0, 0, 0, Throttle.NONE, service.stats);
+        remover.remove("/small");
+        remover.remove("/big");
+        remover.commit();
+        Assert.assertNull("subtree should be removed", jcrResolver.getResource("/big"));
+        Assert.assertNull("node should be removed", jcrResolver.getResource("/small"));
+        Assert.assertEquals("every node should be counted", 27, infos.getNbRemoved());
+        Assert.assertEquals("commits should be bounded", 4, infos.getBatches().size());
+        for (TypeCleanupInfo.Batch batch : infos.getBatches()) {
+            Assert.assertTrue("commit should not remove more than the bound", batch.getNbNodes() <= 10);
+        }
+    }
+
+    @Test
+    public void testMultiRootScan() throws Exception {
+        Assert.assertEquals("roots should be reduced to topmost ones", Arrays.asList(new String[] {"/content/a", "/content/b"}),
+                TypeCleanupServiceImpl.normalizeRoots(new String[] {"/content/b/", " /content/a", "/content/a/c", "", "relative"}));
+
+        ResourceResolver shared = setupFactory();
+        TypeCleanupInfo infos = service.buildCleanupInfo(shared, new String[] {"/content/toKeep", "/content/toClean",
+                "/content/toClean/notexisting", "/content/missing"}, new TypeCleanupOptions());
+        Assert.assertEquals(Arrays.asList(new String[] {"/content/toClean/notexisting"}), infos.getPaths());
+        Assert.assertEquals("missing root should be ignored", Arrays.asList(new String[] {"/content/missing"}), infos.getIgnoredPaths());
+        Assert.assertEquals("overlapping root should be scanned once", 2, infos.getRoots().size());
+        Assert.assertEquals("/content/toClean", infos.getRoots().get(0).getPath());
+        Assert.assertEquals(1, infos.getRoots().get(0).getNbObsolete());
+        Assert.assertEquals(0, infos.getRoots().get(1).getNbObsolete());
+        Assert.assertEquals("root counts should add up", infos.getNbResourceParsed(),
+                infos.getRoots().get(0).getNbResourceParsed() + infos.getRoots().get(1).getNbResourceParsed());
+        shared.close();
+    }
+
+    @Test
+    public void testStreamedValidation() throws Exception {
+        ResourceResolver shared = setupFactory();
+        TypeCleanupInfo infos = service.buildCleanupInfo(Arrays.asList(new String[] {"/content/toClean/notexisting/notexistingChild",
+                "/content/toKeep/existsAndConfigured", "/content/toClean/notexisting", " /content/toClean/notexisting ", "",
+                "/content/missing"}).iterator(), new TypeCleanupOptions());
+        Assert.assertEquals("duplicates and descendants should be dropped", Arrays.asList(new String[] {"/content/toClean/notexisting"}),
+                infos.getPaths());
+        Assert.assertEquals(Arrays.asList(new String[] {"/content/missing", "/content/toKeep/existsAndConfigured"}), infos.getIgnoredPaths());
+        Assert.assertEquals("dropped paths should not be read", 3, infos.getNbResourceParsed());
+
+        final List<String> streamed = new ArrayList<String>();
+        final List<String> ignored = new ArrayList<String>();
+        TypeCleanupOptions options = new TypeCleanupOptions();
+        options.setListener(new TypeCleanupBatchListener() {
+            @Override
+            public void obsolete(String path, String resourceType) {
+                streamed.add(path);
+            }
+
+            @Override
+            public void validated(int nbPaths, List<String> ignoredPaths) {
+                ignored.addAll(ignoredPaths);
+            }
+        });
+        infos = service.buildCleanupInfo(Arrays.asList(new String[] {"/content/toClean/notexisting", "/content/missing"}).iterator(), options);
+        Assert.assertEquals(Arrays.asList(new String[] {"/content/toClean/notexisting"}), streamed);
+        Assert.assertEquals("obsolete paths should be kept for a batch listener", streamed, infos.getPaths());
+        Assert.assertEquals(Arrays.asList(new String[] {"/content/missing"}), ignored);
+        shared.close();
+    }
+
+    @Test
+    public void testScanReport() throws Exception {
+        ResourceResolver shared = setupFactory();
+        service.setupReports(new HashMap<String, Object>());
+        TypeCleanupOptions options = new TypeCleanupOptions();
+        options.setReport(true);
+        TypeCleanupInfo infos = service.buildCleanupInfo(shared.getResource("/content"), options);
+        Assert.assertEquals(1, infos.getNbObsolete());
+        Assert.assertTrue("reported paths should not be kept", infos.getPaths().isEmpty());
+        ScanReport.Reader reader = service.openReport(infos.getReportId());
+        try {
+            Assert.assertArrayEquals("report should record paths with their missing type",
+                    new String[] {"/content/toClean/notexisting", "/apps/blah/foo"}, reader.next());
+            Assert.assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+        try {
+            service.openReport("../" + TypeCleanupServiceImpl.INDEX_FILE);
+            Assert.fail("report ids should not be paths");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertNull("scan of a missing resource should not publish a report", service.buildCleanupInfo((Resource) null, options).getReportId());
+
+        File directory = File.createTempFile("typecleanup", "reports");
+        directory.delete();
+        ScanReport running = new ScanReport(directory, "running", null, 1);
+        new ScanReport(directory, "aborted", null, 1).abort();
+        Assert.assertEquals("reports being written should not be pruned, nor aborted ones published", 1, directory.listFiles().length);
+        running.close();
+        shared.close();
+    }
+
+    @Test
+    public void testJcrTraversal() throws Exception {
+        ResourceResolver jcrResolver = MockSling.newResourceResolver(ResourceResolverType.JCR_MOCK);
+        ContentLoader contentLoader = new ContentLoader(jcrResolver);
+        contentLoader.json("/contentloader/resourceTypes.json", "/apps");
+        contentLoader.json("/contentloader/toClean.json", "/content");
+        Resource root = jcrResolver.getResource("/content");
+        TypeCleanupInfo resources = new TypeCleanupInfo();
+        service.collectObsoletePaths(resources, jcrResolver, root);
+        TypeCleanupInfo nodes = new TypeCleanupInfo();
+        service.collectObsoleteNodes(service.newScanContext(nodes, jcrResolver), root.adaptTo(Node.class), new TypeCleanupOptions());
+        Assert.assertEquals("node traversal should find the same paths", resources.getPaths(), nodes.getPaths());
+        Assert.assertEquals("node traversal should traverse the same nodes", resources.getNbResourceParsed(), nodes.getNbResourceParsed());
+
+        TypeCleanupOptions options = new TypeCleanupOptions();
+        options.setMaxResources(3);
+        TypeCleanupInfo paused = new TypeCleanupInfo();
+        service.collectObsoletePaths(service.newScanContext(paused, jcrResolver), root, options);
+        TypeCleanupInfo pausedNodes = new TypeCleanupInfo();
+        service.collectObsoleteNodes(service.newScanContext(pausedNodes, jcrResolver), root.adaptTo(Node.class), options);
+        Assert.assertEquals("node traversal should pause at the same position", paused.getResumePath(), pausedNodes.getResumePath());
+        jcrResolver.close();
+    }
+
+    @Test
+    public void testIncrementalScan() throws Exception {
+        final List<Resource> changes = new ArrayList<Resource>();
+        service = new TypeCleanupServiceImpl() {
+            @Override
+            protected Iterator<Resource> findChangedResources(Resource root, long since) {
+                return changes.iterator();
+            }
+        };
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, new String[] {"/apps/blah","/libs"});
+        properties.put(TypeCleanupServiceImpl.PROP_EXCLUSIONS_PREFIXES, new String[] {"/apps/blah/ignored", "/libs/ignored"});
+        service.setupLists(properties);
+        service.setupIncremental(new HashMap<String, Object>());
+        ResourceResolver shared = setupFactory();
+        TypeCleanupOptions options = new TypeCleanupOptions();
+        options.setStrategy(TypeCleanupOptions.Strategy.INCREMENTAL);
+        TypeCleanupInfo full = service.buildCleanupInfo(shared.getResource("/content"));
+        TypeCleanupInfo first = service.buildCleanupInfo(shared.getResource("/content"), options);
+        Assert.assertEquals("first incremental scan should be a traversal", full.getNbResourceParsed(), first.getNbResourceParsed());
+        Assert.assertEquals(full.getPaths(), first.getPaths());
+
+        Map<String, Object> added = new HashMap<String, Object>();
+        added.put(TypeCleanupServiceImpl.PN_RESOURCE_TYPE, "/apps/blah/removed");
+        changes.add(shared.create(shared.getResource("/content/toKeep"), "added", added));
+        TypeCleanupInfo next = service.buildCleanupInfo(shared.getResource("/content"), options);
+        Assert.assertEquals(Arrays.asList(new String[] {"/content/toClean/notexisting", "/content/toKeep/added"}), next.getPaths());
+        Assert.assertEquals("only root, previous results and changes should be read", 3, next.getNbResourceParsed());
+
+        changes.clear();
+        Map<String, Object> event = new HashMap<String, Object>();
+        event.put(SlingConstants.PROPERTY_PATH, "/apps/blah/foo");
+        service.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_ADDED, event));
+        TypeCleanupInfo afterTypeChange = service.buildCleanupInfo(shared.getResource("/content"), options);
+        Assert.assertEquals("a type change should lead to a traversal", full.getNbResourceParsed() + 1, afterTypeChange.getNbResourceParsed());
+        Assert.assertEquals(next.getPaths(), afterTypeChange.getPaths());
+
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, new String[] {"/apps"});
+        service.setupLists(properties);
+        TypeCleanupInfo afterRulesChange = service.buildCleanupInfo(shared.getResource("/content"), options);
+        Assert.assertEquals("a change of inclusions should lead to a traversal", full.getNbResourceParsed() + 1, afterRulesChange.getNbResourceParsed());
+        Assert.assertTrue("resources of newly included types should be found", afterRulesChange.getPaths().contains("/content/toKeep/notexistingButNotConfigured"));
+        shared.close();
+    }
+
+    @Test
+    public void testCoalescedScan() throws Exception {
+        TypeCleanupInfo first = new TypeCleanupInfo();
+        CoalescedScan flight = new CoalescedScan(first);
+        TypeCleanupInfo shared = flight.getScan();
+        shared.traverse();
+        shared.add("/content/a", "/apps/blah/foo");
+        Assert.assertEquals("the request running the scan should get obsolete paths as they are found",
+                Arrays.asList(new String[] {"/content/a"}), first.getPaths());
+        TypeCleanupInfo late = new TypeCleanupInfo();
+        CoalescedScan.Attachment lateAttachment = flight.attach(late);
+        Assert.assertNotNull(lateAttachment);
+        shared.traverse();
+        shared.add("/content/b", "/apps/blah/foo");
+        Assert.assertTrue("obsolete paths should wait for late requests to take them", late.getPaths().isEmpty());
+        shared.addRoot("/content", 2, 2);
+        flight.complete(null);
+        Assert.assertNull("a complete scan should not be shared", flight.attach(new TypeCleanupInfo()));
+        first.mergeCounts(shared);
+        flight.await(lateAttachment);
+        Assert.assertEquals(first.getPaths(), late.getPaths());
+        Assert.assertEquals("paths found before attaching should be replayed", Arrays.asList(new String[] {"/content/a", "/content/b"}),
+                late.getPaths());
+        Assert.assertEquals("obsolete paths should be counted once", 2, late.getNbObsolete());
+        Assert.assertEquals(2, late.getNbResourceParsed());
+        Assert.assertEquals(1, late.getRoots().size());
+        Assert.assertEquals(first.getNbResourceParsed(), late.getNbResourceParsed());
+
+        TypeCleanupInfo leader = new TypeCleanupInfo();
+        CoalescedScan slow = new CoalescedScan(leader);
+        CoalescedScan.Attachment slowAttachment = slow.attach(new TypeCleanupInfo());
+        for (int i = 0; i <= CoalescedScan.MAX_BUFFERED; i++) {
+            slow.getScan().add("/content/" + i, "/apps/blah/foo");
+        }
+        Assert.assertEquals("the request running the scan should not be limited by late requests",
+                CoalescedScan.MAX_BUFFERED + 1, leader.getPaths().size());
+        Assert.assertFalse(slow.getScan().isCancelled());
+        try {
+            slow.await(slowAttachment);
+            Assert.fail("a late request that didn't keep up should be detached");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        leader.cancel();
+        Assert.assertTrue("a scan no request follows anymore should be cancelled", slow.getScan().isCancelled());
+    }
+
+    @Test
+    public void testParallelScan() throws Exception {
+        ResourceResolver shared = setupFactory();
+        TypeCleanupInfo sequential = service.buildCleanupInfo(shared.getResource("/content"));
+        service.parallelism = 2;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            TypeCleanupInfo parallel = new TypeCleanupInfo();
+            ResourceResolver checker = service.acquireChecker();
+            service.traverse(service.newScanContext(parallel, checker), shared.getResource("/content"), new TypeCleanupOptions(), executor);
+            service.releaseChecker(checker);
+            Assert.assertEquals("parallel scan should find the same obsolete paths", new TreeSet<String>(sequential.getPaths()),
+                    new TreeSet<String>(parallel.getPaths()));
+            Assert.assertEquals("parallel scan should traverse each resource once", sequential.getNbResourceParsed(), parallel.getNbResourceParsed());
+
+            TypeCleanupServiceImpl failing = new TypeCleanupServiceImpl() {
+                @Override
+                protected boolean isObsolete(ScanContext scan, Resource resource) {
+                    if (resource.getPath().equals("/content/toKeep")) {
+                        throw new IllegalStateException("unreadable");
+                    }
+                    return super.isObsolete(scan, resource);
+                }
+            };
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, new String[] {"/apps/blah","/libs"});
+            failing.setupLists(properties);
+            failing.factory = service.factory;
+            failing.parallelism = 2;
+            checker = failing.acquireChecker();
+            try {
+                failing.traverse(failing.newScanContext(new TypeCleanupInfo(), checker), shared.getResource("/content"), new TypeCleanupOptions(), executor);
+                Assert.fail("a worker error should fail the scan");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("unreadable", e.getMessage());
+            } finally {
+                failing.releaseChecker(checker);
+            }
+        } finally {
+            executor.shutdownNow();
+            service.parallelism = 1;
+        }
+        shared.close();
+    }
+
+    @Test
+    public void testCheckerPool() throws Exception {
+        ResourceResolver shared = setupFactory();
+        ResourceResolver checker = service.acquireChecker();
+        service.releaseChecker(checker);
+        Assert.assertSame("released checker should be reused", checker, service.acquireChecker());
+        checker.close();
+        service.releaseChecker(checker);
+        ResourceResolver other = service.acquireChecker();
+        Assert.assertNotSame("closed checker should not be reused", checker, other);
+        service.releaseChecker(other);
+        service.setupCheckers(new HashMap<String, Object>());
+        Assert.assertFalse("checkers of a previous pool should be closed", other.isLive());
+        shared.close();
+    }
+
+    @Test
+    public void testTypeInventory() throws Exception {
+        ResourceResolver shared = setupFactory();
+        TypeInventory inventory = service.buildInventory(shared.getResource("/content"));
+        Assert.assertEquals("every resource should be counted, obsolete descendants included", 9, inventory.getNbResourceParsed());
+        int untyped = inventory.getIndexesByCount().get(0);
+        Assert.assertEquals("resources without a resource type should not be listed under their node type",
+                TypeInventory.UNTYPED, inventory.getResourceType(untyped));
+        Assert.assertEquals(3, inventory.getCount(untyped));
+        int foo = inventory.getIndexesByCount().get(1);
+        Assert.assertEquals("/apps/blah/foo", inventory.getResourceType(foo));
+        Assert.assertEquals(2, inventory.getCount(foo));
+        Assert.assertFalse(inventory.isExisting(foo));
+        Assert.assertEquals(Arrays.asList(new String[] {"/content/toClean/notexisting", "/content/toClean/notexisting/notexistingChild"}),
+                inventory.getSamplePaths(foo));
+
+        TypeInventory.Evaluation current = service.evaluate(inventory, new String[] {"/apps/blah"}, new String[] {"/apps/blah/ignored"});
+        Assert.assertEquals(3, current.getNbChecked());
+        Assert.assertEquals(2, current.getNbObsolete());
+        Assert.assertEquals(Arrays.asList(new String[] {"/apps/blah/foo"}), current.getObsoleteTypes());
+        TypeInventory.Evaluation wider = service.evaluate(inventory, new String[] {"/apps", " "}, null);
+        Assert.assertEquals(6, wider.getNbChecked());
+        Assert.assertEquals("a wider candidate should find more obsolete types", 3, wider.getObsoleteTypes().size());
+        shared.close();
+
+        TypeInventory many = new TypeInventory();
+        for (int i = 0; i < 1000; i++) {
+            many.add("/apps/type" + (i % 500), "/content/" + i);
+        }
+        Assert.assertEquals("types should be kept apart once the table grows", 500, many.size());
+        for (int index = 0; index < many.size(); index++) {
+            Assert.assertEquals(2, many.getCount(index));
+        }
+    }
+
+    @Test
+    public void testPruning() throws Exception {
+        Resource root = resolver.getResource("/content");
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_PRUNING_NAMES, new String[] {"", "toClean"});
+        service.setupPruning(properties);
+        TypeCleanupInfo infos = new TypeCleanupInfo();
+        service.collectObsoletePaths(infos, resolver, root);
+        Assert.assertEquals("pruned subtree should not be traversed", 0, infos.getNbObsolete());
+        Assert.assertEquals(1, infos.getNbPruned());
+        Assert.assertEquals(7, infos.getNbResourceParsed());
+
+        properties.clear();
+        properties.put(TypeCleanupServiceImpl.PROP_PRUNING_PATHS, new String[] {"/content/*Keep", "/content/**/notexisting"});
+        service.setupPruning(properties);
+        infos = new TypeCleanupInfo();
+        service.collectObsoletePaths(infos, resolver, root);
+        Assert.assertEquals("obsolete resources should not be pruned", Arrays.asList("/content/toClean/notexisting"), infos.getPaths());
+        Assert.assertEquals(1, infos.getNbPruned());
+        Assert.assertEquals(4, infos.getNbResourceParsed());
+
+        properties.clear();
+        properties.put(TypeCleanupServiceImpl.PROP_PRUNING_DEPTH, 1);
+        service.setupPruning(properties);
+        infos = new TypeCleanupInfo();
+        service.collectObsoletePaths(infos, resolver, root);
+        Assert.assertEquals(1, infos.getNbResourceParsed());
+
+        properties.clear();
+        properties.put(TypeCleanupServiceImpl.PROP_PRUNING_NODE_TYPES, new String[] {"nt:unstructured"});
+        service.setupPruning(properties);
+        ResourceResolver jcrResolver = MockSling.newResourceResolver(ResourceResolverType.JCR_MOCK);
+        ContentLoader contentLoader = new ContentLoader(jcrResolver);
+        contentLoader.json("/contentloader/toClean.json", "/content");
+        infos = new TypeCleanupInfo();
+        service.collectObsoleteNodes(service.newScanContext(infos, jcrResolver), jcrResolver.getResource("/content").adaptTo(Node.class),
+                new TypeCleanupOptions());
+        Assert.assertEquals("node types should be pruned on nodes", 1, infos.getNbPruned());
+        Assert.assertEquals(1, infos.getNbResourceParsed());
+        jcrResolver.close();
+    }
+
+    @Test
+    public void testScheduledCleanup() throws Exception {
+        ResourceResolver shared = setupFactory();
+        ResourceResolver jcrResolver = MockSling.newResourceResolver(ResourceResolverType.JCR_MOCK);
+        ContentLoader contentLoader = new ContentLoader(jcrResolver);
+        contentLoader.json("/contentloader/resourceTypes.json", "/apps");
+        contentLoader.json("/contentloader/toClean.json", "/content");
+        jcrResolver.commit();
+        File state = File.createTempFile("typecleanup", ".properties");
+        state.delete();
+        TypeCleanupServiceImpl failing = new TypeCleanupServiceImpl() {
+            @Override
+            public void cleanup(ResourceResolver resolver, TypeCleanupInfo infos) {
+                infos.addPartition(infos.getPaths().size(), 0, "conflict");
+            }
+        };
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(TypeCleanupServiceImpl.PROP_INCLUSIONS_PREFIXES, new String[] {"/apps/blah","/libs"});
+        failing.setupLists(properties);
+        failing.factory = service.factory;
+        try {
+            new ScheduledCleanup(failing, Arrays.asList(new String[] {"/content"}), 0, 1000, state).run(jcrResolver);
+            Assert.fail("a chunk some removals of which failed should fail the run");
+        } catch (RepositoryException e) {
+            Assert.assertFalse("position should not go past a chunk some removals of which failed", state.exists());
+        }
+        new ScheduledCleanup(service, Arrays.asList(new String[] {"/content"}), 0, 3, state).run(jcrResolver);
+        Assert.assertNotNull("a slice should stop after its first chunk, and persist its position",
+                new ScheduledCleanup(service, Arrays.asList(new String[] {"/content"}), 0, 3, state).load().getProperty(ScheduledCleanup.KEY_POSITION));
+        Assert.assertNull("position of other roots should not be used",
+                new ScheduledCleanup(service, Arrays.asList(new String[] {"/apps"}), 0, 3, state).load().getProperty(ScheduledCleanup.KEY_POSITION));
+
+        new ScheduledCleanup(service, Arrays.asList(new String[] {"/content"}), 60000, 3, state).run(jcrResolver);
+        Assert.assertFalse("a complete cleanup should start over", state.exists());
+        Assert.assertNull("obsolete resource should be removed", jcrResolver.getResource("/content/toClean/notexisting"));
+        Assert.assertNotNull(jcrResolver.getResource("/content/toKeep/existsAndConfigured"));
+        jcrResolver.close();
+        shared.close();
+    }
+
+    /**
+     * points the service to a resolver factory whose resolvers share the sample content
+     * @return resolver of that factory
+     */
+    private ResourceResolver setupFactory() throws Exception {
+        service.factory = MockSling.newResourceResolverFactory(ResourceResolverType.RESOURCERESOLVER_MOCK);
+        ResourceResolver shared = service.factory.getAdministrativeResourceResolver(null);
+        ContentLoader contentLoader = new ContentLoader(shared);
+        contentLoader.json("/contentloader/resourceTypes.json", "/apps");
+        contentLoader.json("/contentloader/toClean.json", "/content");
+        return shared;
+    }
+
+    @Test
+    public void testCleanupPartitions() {
+        List<List<String>> partitions = PartitionedCleanup.partition(Arrays.asList(new String[] {
+                "/content/a/b", "/content/a/b/c", "/content/a/d", "/content/e/f", "/content/g/h"}), 2);
+        Assert.assertEquals(2, partitions.size());
+        Assert.assertEquals("siblings should be in the same partition, descendants dropped",
+                Arrays.asList(new String[] {"/content/a/b", "/content/a/d"}), partitions.get(0));
+        Assert.assertEquals(Arrays.asList(new String[] {"/content/e/f", "/content/g/h"}), partitions.get(1));
+    }
+
+    @Test
+    public void testPartitionedCleanup() throws Exception {
+        ResourceResolver jcrResolver = MockSling.newResourceResolver(ResourceResolverType.JCR_MOCK);
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("jcr:primaryType", "nt:unstructured");
+        Resource parts = jcrResolver.create(jcrResolver.getResource("/"), "parts", properties);
+        for (String name : new String[] {"a", "b", "c"}) {
+            Resource parent = jcrResolver.create(parts, name, properties);
+            for (int i = 0; i < 2; i++) {
+                Resource child = jcrResolver.create(parent, "child" + i, properties);
+                jcrResolver.create(child, "grandchild", properties);
+            }
+        }
+        jcrResolver.commit();
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put(TypeCleanupServiceImpl.PROP_CLEANUP_PARALLELISM, 3);
+        config.put(TypeCleanupServiceImpl.PROP_CLEANUP_BATCH_SIZE, 2);
+
+        service.setupCleanup(config);
+        TypeCleanupInfo infos = new TypeCleanupInfo();
+        infos.add("/parts/a/child0");
+        infos.add("/parts/a/child1");
+        infos.add("/parts/b/child0");
+        infos.add("/parts/b/child0/grandchild");
+        service.cleanup(jcrResolver, infos);
+        jcrResolver.adaptTo(Session.class).refresh(false);
+        Assert.assertNull(jcrResolver.getResource("/parts/a/child0"));
+        Assert.assertNull(jcrResolver.getResource("/parts/a/child1"));
+        Assert.assertNull(jcrResolver.getResource("/parts/b/child0"));
+        Assert.assertNotNull("paths not listed should be kept", jcrResolver.getResource("/parts/b/child1"));
+        Assert.assertEquals("every node should be counted once", 6, infos.getNbRemoved());
+        Assert.assertEquals(2, infos.getPartitions().size());
+        Assert.assertEquals(0, infos.getNbFailedPartitions());
+
+        TypeCleanupServiceImpl failing = new TypeCleanupServiceImpl() {
+            @Override
+            protected BatchRemover newBatchRemover(ResourceResolver resolver, TypeCleanupInfo infos) {
+                return new BatchRemover(resolver, infos, 1, 0, 0, 0, 0, Throttle.NONE, stats) {
+                    @Override
+                    void remove(String path) throws RepositoryException {
+                        if (path.equals("/parts/c/child0")) {
+                            throw new RepositoryException("locked");
+                        }
+                        super.remove(path);
+                    }
+                };
+            }
+        };
+        failing.setupCleanup(config);
+        infos = new TypeCleanupInfo();
+        infos.add("/parts/b/child1");
+        infos.add("/parts/c/child0");
+        infos.add("/parts/c/child1");
+        try {
+            failing.cleanup(jcrResolver, infos);
+        } finally {
+            failing.setupCleanup(new HashMap<String, Object>());
+            service.setupCleanup(new HashMap<String, Object>());
+        }
+        jcrResolver.adaptTo(Session.class).refresh(false);
+        Assert.assertNull("other partitions should still commit", jcrResolver.getResource("/parts/b/child1"));
+        Assert.assertNotNull(jcrResolver.getResource("/parts/c/child0"));
+        Assert.assertNotNull("a failing partition should stop", jcrResolver.getResource("/parts/c/child1"));
+        Assert.assertEquals(1, infos.getNbFailedPartitions());
+        Assert.assertEquals(2, infos.getNbRemoved());
+        for (TypeCleanupInfo.Partition partition : infos.getPartitions()) {
+            if (partition.isSucceeded()) {
+                Assert.assertEquals(1, partition.getNbPaths());
+                Assert.assertEquals(2, partition.getNbRemoved());
+            } else {
+                Assert.assertEquals("locked", partition.getError());
+                Assert.assertEquals(2, partition.getNbPaths());
+                Assert.assertEquals(0, partition.getNbRemoved());
+            }
+        }
+        jcrResolver.close();
+    }
+
+    @Test
+    public void testPathList() {
+        List<String> expected = new ArrayList<String>();
+        PathList paths = new PathList(256);
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 10; j++) {
+                String path = "/content/site/\u00e9t\u00e9/page" + i + "/jcr:content/par/component" + j;
+                expected.add(path);
+                paths.add(path);
+            }
+        }
+        Assert.assertTrue("paths should be spilled past the threshold", paths.isSpilled());
+        Assert.assertEquals(expected.size(), paths.size());
+        Assert.assertEquals(expected.get(0), paths.get(0));
+        Assert.assertEquals(expected.get(517), paths.get(517));
+        Assert.assertEquals(expected.get(999), paths.get(999));
+        Assert.assertEquals("iteration should decode all paths in order", expected, new ArrayList<String>(paths));
+        Assert.assertTrue("shared prefixes should not be stored again", paths.getEncodedSize() < expected.size() * 16);
+        paths.dispose();
+        Assert.assertEquals(0, paths.size());
+        Assert.assertFalse(paths.isSpilled());
+    }
+
+    @Test
+    public void testThrottle() {
+        Throttle throttle = new Throttle(1000, 10);
+        long start = System.nanoTime();
+        for (int i = 0; i < 51; i++) {
+            throttle.acquire(1);
+        }
+        Assert.assertTrue("operations should be limited to the rate", System.nanoTime() - start >= 45000000L);
+        throttle.record(20000000L);
+        Assert.assertTrue("slow operations should back off", throttle.getBackOff() > 0);
+        throttle.record(1000000L);
+        throttle.record(1000000L);
+        throttle.record(1000000L);
+        Assert.assertEquals("fast operations should speed up again", 0, throttle.getBackOff(), 0);
+        Assert.assertFalse(Throttle.NONE.isActive());
+    }
+
+    @Test
+    public void testStats() {
+        ScanContext scan = service.newScanContext(new TypeCleanupInfo(), resolver);
+        service.collectObsoletePaths(scan, resolver.getResource("/content"));
+        Assert.assertEquals("counts should be kept by the scan until it is done", 0, service.stats.getNodesVisited());
+        scan.flushStats();
+        Assert.assertTrue("visits should be counted", service.stats.getNodesVisited() > 0);
+        Assert.assertEquals("every inclusion check should be counted", scan.infos.getNbResourceParsed(), service.stats.getInclusionChecks());
+        Assert.assertEquals("type lookups should be timed", service.stats.getTypeCacheMisses(), service.stats.getTypeLookups());
+        Assert.assertArrayEquals(new String[] {"/apps/blah/foo=1"}, service.stats.getObsoleteHitsPerType());
+
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100; value++) {
+            histogram.update(value);
+        }
+        Assert.assertEquals(100, histogram.getMax());
+        Assert.assertEquals(50.5, histogram.getMean(), 0.001);
+        long median = histogram.getPercentile(0.5);
+        Assert.assertTrue("percentile should be within a factor of two", median >= 50 && median < 100);
+    }
 }